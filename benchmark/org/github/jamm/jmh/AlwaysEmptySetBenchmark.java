@@ -0,0 +1,54 @@
+package org.github.jamm.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.github.jamm.AlwaysEmptySet;
+import org.github.jamm.MemoryMeter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of <code>MemoryMeter.measureDeep</code> per crawled object without tracking the visited objects,
+ * with an AlwaysEmptySet, to be compared with the trackers of <code>MeasureDeepBenchmark</code>. AlwaysEmptySet never
+ * terminates on a cyclic graph, so only the acyclic shapes are measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AlwaysEmptySetBenchmark {
+
+    @Param({ "WIDE_ARRAY", "UNMETERED_ELEMENTS", "DEEP_LINKED_LIST", "HASH_MAP_OF_STRINGS" })
+    private GraphShape shape;
+
+    private MemoryMeter meter;
+
+    private Object graph;
+
+    @Setup
+    public void setup() {
+        meter = new MemoryMeter().withTrackerProvider(AlwaysEmptySet.provider());
+        graph = shape.build();
+        long count = new MemoryMeter().countChildren(graph);
+        if (count != GraphShape.OBJECTS)
+            throw new IllegalStateException(String.format("The %s graph has %d objects instead of %d", shape, count, GraphShape.OBJECTS));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GraphShape.OBJECTS)
+    public long measureDeep() {
+        return meter.measureDeep(graph);
+    }
+}
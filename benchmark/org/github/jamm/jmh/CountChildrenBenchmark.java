@@ -0,0 +1,56 @@
+package org.github.jamm.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.github.jamm.MemoryMeter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of <code>MemoryMeter.countChildren</code> per crawled object, for every graph shape and every
+ * <code>FieldAccess</code> mode. countChildren always tracks the visited objects with an IdentityHashSet. Run with
+ * <code>-prof gc</code> to get the bytes allocated per object (<code>gc.alloc.rate.norm</code>).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+// REFLECTION needs the JDK packages of the graphs to be open; older JVMs ignore the option
+@Fork(value = 1, jvmArgsAppend = { "-XX:+IgnoreUnrecognizedVMOptions",
+                                   "--add-opens=java.base/java.lang=ALL-UNNAMED",
+                                   "--add-opens=java.base/java.util=ALL-UNNAMED" })
+@State(Scope.Thread)
+public class CountChildrenBenchmark {
+
+    @Param({ "WIDE_ARRAY", "UNMETERED_ELEMENTS", "DEEP_LINKED_LIST", "HASH_MAP_OF_STRINGS", "CYCLIC" })
+    private GraphShape shape;
+
+    @Param({ "REFLECTION", "UNSAFE", "BEST", "GENERATED" })
+    private MemoryMeter.FieldAccess fieldAccess;
+
+    private MemoryMeter meter;
+
+    private Object graph;
+
+    @Setup
+    public void setup() {
+        meter = new MemoryMeter().withFieldAccess(fieldAccess);
+        graph = shape.build();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GraphShape.OBJECTS)
+    public long countChildren() {
+        return meter.countChildren(graph);
+    }
+}
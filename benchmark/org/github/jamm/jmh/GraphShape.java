@@ -0,0 +1,119 @@
+package org.github.jamm.jmh;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.github.jamm.Unmetered;
+
+/**
+ * The shapes of the object graphs crawled by the benchmarks. Every graph contains exactly <code>OBJECTS</code> objects,
+ * so that the benchmarks can report the time and allocation per crawled object.
+ */
+public enum GraphShape {
+
+    /**
+     * An array referencing distinct objects.
+     */
+    WIDE_ARRAY {
+        @Override
+        Object build() {
+            Object[] array = new Object[OBJECTS - 1];
+            for (int i = 0; i < array.length; i++)
+                array[i] = new Object();
+            return array;
+        }
+    },
+
+    /**
+     * An array referencing distinct boxed longs and, in between, distinct objects of an <code>@Unmetered</code> class,
+     * so that the crawl checks whether an element is ignored for classes with several superclasses and interfaces. The
+     * skipped objects are not part of the graph.
+     */
+    UNMETERED_ELEMENTS {
+        @Override
+        Object build() {
+            Object[] array = new Object[2 * (OBJECTS - 1)];
+            for (int i = 0; i < array.length; i += 2) {
+                array[i] = Long.valueOf(Integer.MAX_VALUE + (long) i);
+                array[i + 1] = new Skipped();
+            }
+            return array;
+        }
+    },
+
+    /**
+     * A linked list as deep as the graph is large.
+     */
+    DEEP_LINKED_LIST {
+        @Override
+        Object build() {
+            Node head = new Node();
+            Node node = head;
+            for (int i = 1; i < OBJECTS; i++) {
+                node.next = new Node();
+                node = node.next;
+            }
+            return head;
+        }
+    },
+
+    /**
+     * A HashMap of distinct strings: the map, its table, and a node, a string and its value array per
+     * entry.
+     */
+    HASH_MAP_OF_STRINGS {
+        @Override
+        Object build() {
+            int entries = (OBJECTS - 2) / 3;
+            Map<String, Object> map = new HashMap<String, Object>(entries * 2);
+            for (int i = 0; i < entries; i++)
+                map.put(Integer.toString(i), null);
+            return map;
+        }
+    },
+
+    /**
+     * A ring where each node also references a random node, so that most objects are reached several times.
+     */
+    CYCLIC {
+        @Override
+        Object build() {
+            Random random = new Random(42);
+            Node[] nodes = new Node[OBJECTS];
+            for (int i = 0; i < nodes.length; i++)
+                nodes[i] = new Node();
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i].next = nodes[(i + 1) % nodes.length];
+                nodes[i].other = nodes[random.nextInt(nodes.length)];
+            }
+            return nodes[0];
+        }
+    };
+
+    /**
+     * The number of objects of each graph.
+     */
+    public static final int OBJECTS = 100001;
+
+    /**
+     * @return a new graph of OBJECTS objects
+     */
+    abstract Object build();
+
+    static final class Node {
+        Node next;
+        Node other;
+    }
+
+    /**
+     * The annotation is inherited from an interface, so that finding it requires walking the interfaces of the class.
+     */
+    @Unmetered
+    interface Unmeasured {
+    }
+
+    static final class Skipped implements Serializable, Unmeasured {
+    }
+}
@@ -0,0 +1,69 @@
+package org.github.jamm.jmh;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.github.jamm.MemoryMeter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the cost of <code>MemoryMeter.measure</code> per object under every <code>Guess</code> mode, on objects of
+ * various classes and arrays of various lengths. The NEVER and FALLBACK_* modes use instrumentation, so the benchmarks
+ * must run with jamm as java agent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MeasureBenchmark {
+
+    private static final int OBJECTS = 10;
+
+    @Param({ "NEVER", "FALLBACK_SPEC", "FALLBACK_UNSAFE", "FALLBACK_BEST", "ALWAYS_SPEC", "ALWAYS_UNSAFE" })
+    private String guess;
+
+    private MemoryMeter meter;
+
+    private Object[] objects;
+
+    @Setup
+    public void setup() {
+        meter = new MemoryMeter().withGuessing(MemoryMeter.Guess.valueOf(guess));
+        objects = new Object[] { new Object(),
+                                 "jamm",
+                                 Integer.valueOf(42),
+                                 BigInteger.TEN,
+                                 new ArrayList<Object>(),
+                                 new HashMap<Object, Object>(),
+                                 new ReentrantReadWriteLock(),
+                                 ByteBuffer.allocate(16),
+                                 new byte[100],
+                                 new Object[1000] };
+        assert objects.length == OBJECTS;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OBJECTS)
+    public void measure(Blackhole bh) {
+        for (Object object : objects)
+            bh.consume(meter.measure(object));
+    }
+}
@@ -0,0 +1,89 @@
+package org.github.jamm.jmh;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.github.jamm.BloomFilterSet;
+import org.github.jamm.IdentityHashSet;
+import org.github.jamm.MemoryMeter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of <code>MemoryMeter.measureDeep</code> per crawled object, for every graph shape, every
+ * built-in tracker of the visited objects and every <code>FieldAccess</code> mode. Run with <code>-prof gc</code> to get
+ * the bytes allocated per object (<code>gc.alloc.rate.norm</code>).
+ * <p>
+ * AlwaysEmptySet never terminates on a cyclic graph, so it is measured by <code>AlwaysEmptySetBenchmark</code> on the
+ * acyclic shapes only.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+// REFLECTION needs the JDK packages of the graphs to be open; older JVMs ignore the option
+@Fork(value = 1, jvmArgsAppend = { "-XX:+IgnoreUnrecognizedVMOptions",
+                                   "--add-opens=java.base/java.lang=ALL-UNNAMED",
+                                   "--add-opens=java.base/java.util=ALL-UNNAMED" })
+@State(Scope.Thread)
+public class MeasureDeepBenchmark {
+
+    @Param({ "WIDE_ARRAY", "UNMETERED_ELEMENTS", "DEEP_LINKED_LIST", "HASH_MAP_OF_STRINGS", "CYCLIC" })
+    private GraphShape shape;
+
+    @Param({ "IDENTITY_HASH_SET", "BLOOM_FILTER_SET" })
+    private Tracker tracker;
+
+    @Param({ "REFLECTION", "UNSAFE", "BEST", "GENERATED" })
+    private MemoryMeter.FieldAccess fieldAccess;
+
+    private MemoryMeter meter;
+
+    private Object graph;
+
+    @Setup
+    public void setup() {
+        meter = new MemoryMeter().withTrackerProvider(tracker.provider()).withFieldAccess(fieldAccess);
+        graph = shape.build();
+        long count = new MemoryMeter().withFieldAccess(fieldAccess).countChildren(graph);
+        if (count != GraphShape.OBJECTS)
+            throw new IllegalStateException(String.format("The %s graph has %d objects instead of %d", shape, count, GraphShape.OBJECTS));
+    }
+
+    /**
+     * The built-in trackers that can track any graph.
+     */
+    public enum Tracker {
+        IDENTITY_HASH_SET {
+            @Override
+            Callable<Set<Object>> provider() {
+                return IdentityHashSet.provider();
+            }
+        },
+        BLOOM_FILTER_SET {
+            @Override
+            Callable<Set<Object>> provider() {
+                return BloomFilterSet.provider(GraphShape.OBJECTS, 0.001);
+            }
+        };
+
+        abstract Callable<Set<Object>> provider();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GraphShape.OBJECTS)
+    public long measureDeep() {
+        return meter.measureDeep(graph);
+    }
+}
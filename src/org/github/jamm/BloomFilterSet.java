@@ -0,0 +1,275 @@
+package org.github.jamm;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * A probabilistic <code>Set</code> comparing its elements by identity, backed by a Bloom filter.
+ * <p>
+ * Used as a <code>MemoryMeter</code> tracker, it guarantees that no object is visited twice (so cycles are never
+ * followed) with a fixed memory footprint, whatever the number of objects visited. The price is that
+ * <code>contains</code> and <code>add</code> can report an absent object as present: the object, and the objects only
+ * reachable through it, are then not measured. <code>measureDeep</code> can only <i>undercount</i>.
+ * <p>
+ * The filter is sized from the number of objects expected to be visited and the acceptable false positive
+ * probability. The elements are hashed from their <code>System.identityHashCode</code>, with double hashing to derive
+ * the positions of the bits. As identity hash codes are only 31 bits wide, objects sharing the same identity hash code
+ * are indistinguishable, which adds a false positive probability of about <code>n / 2^31</code> for <code>n</code>
+ * objects.
+ */
+public final class BloomFilterSet<T> implements Set<T> {
+
+    private static final double IDENTITY_HASH_CODES = 1L << 31;
+
+    private static final long MAX_BITS = (long) Integer.MAX_VALUE * Long.SIZE;
+
+    private final long[] bits;
+
+    /**
+     * The number of bits of the filter, a multiple of 64.
+     */
+    private final long bitCount;
+
+    private final int hashCount;
+
+    /**
+     * The number of elements for which <code>add</code> returned <code>true</code>.
+     */
+    private int size;
+
+    /**
+     * @param expectedSize the number of elements the set is expected to hold
+     * @param falsePositiveProbability the acceptable probability of reporting an absent element as present once the
+     * set holds <code>expectedSize</code> elements, in (0, 1)
+     */
+    public BloomFilterSet(int expectedSize, double falsePositiveProbability) {
+        checkArguments(expectedSize, falsePositiveProbability);
+        this.bitCount = bitCountFor(expectedSize, falsePositiveProbability);
+        this.bits = new long[(int) (bitCount / Long.SIZE)];
+        this.hashCount = hashCountFor(expectedSize, bitCount);
+    }
+
+    private static void checkArguments(int expectedSize, double falsePositiveProbability) {
+        if (expectedSize <= 0)
+            throw new IllegalArgumentException(String.format("the expected size must be greater than zero (was %s).", expectedSize));
+        if (!(falsePositiveProbability > 0 && falsePositiveProbability < 1))
+            throw new IllegalArgumentException(String.format("the false positive probability must be in (0, 1) (was %s).", falsePositiveProbability));
+    }
+
+    /**
+     * @return the optimal number of bits for the specified settings, rounded up to a multiple of 64
+     */
+    private static long bitCountFor(int expectedSize, double falsePositiveProbability) {
+        long m = (long) Math.ceil(-expectedSize * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        m = Math.min(Math.max(m, Long.SIZE), MAX_BITS);
+        return (m + Long.SIZE - 1) / Long.SIZE * Long.SIZE;
+    }
+
+    /**
+     * @return the optimal number of hash functions for the specified settings
+     */
+    private static int hashCountFor(int expectedSize, long bitCount) {
+        return Math.max(1, (int) Math.round((double) bitCount / expectedSize * Math.log(2)));
+    }
+
+    /**
+     * @param expectedSize the number of objects a measurement is expected to visit
+     * @param falsePositiveProbability the acceptable probability for an object to be wrongly considered as already
+     * visited
+     * @return a tracker provider creating <code>BloomFilterSet</code>s with the specified settings
+     */
+    public static <T> Provider<T> provider(int expectedSize, double falsePositiveProbability) {
+        return new Provider<T>(expectedSize, falsePositiveProbability);
+    }
+
+    /**
+     * @return the probability of reporting an absent element as present given the number of elements currently held,
+     * including the probability of an identity hash code collision
+     */
+    public double falsePositiveProbability() {
+        return falsePositiveProbability(hashCount, bitCount, size);
+    }
+
+    private static double falsePositiveProbability(int hashCount, long bitCount, long size) {
+        double filter = Math.pow(1 - Math.exp(-hashCount * (double) size / bitCount), hashCount);
+        double identityHashCollision = Math.min(1, size / IDENTITY_HASH_CODES);
+        return 1 - (1 - filter) * (1 - identityHashCollision);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean contains(Object o) {
+        if (o == null)
+            return false;
+
+        long h1 = hash1(o);
+        long h2 = hash2(o);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = bitIndex(h1 + i * h2);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the specified element.
+     *
+     * @param o the element to add
+     * @return <code>true</code> if the element was definitely absent, <code>false</code> if it was probably present
+     * @throws NullPointerException if the element is null
+     */
+    public boolean add(T o) {
+        if (o == null)
+            throw new NullPointerException();
+
+        long h1 = hash1(o);
+        long h2 = hash2(o);
+        boolean added = false;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = bitIndex(h1 + i * h2);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            if ((bits[word] & mask) == 0) {
+                bits[word] |= mask;
+                added = true;
+            }
+        }
+        if (added)
+            size++;
+        return added;
+    }
+
+    public void clear() {
+        for (int i = 0; i < bits.length; i++)
+            bits[i] = 0;
+        size = 0;
+    }
+
+    public boolean addAll(Collection<? extends T> c) {
+        boolean modified = false;
+        for (T t : c)
+            modified |= add(t);
+        return modified;
+    }
+
+    public boolean containsAll(Collection<?> c) {
+        for (Object o : c) {
+            if (!contains(o))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Not supported, the elements are not stored.
+     */
+    public Iterator<T> iterator() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported, the elements are not stored.
+     */
+    public Object[] toArray() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported, the elements are not stored.
+     */
+    public <K> K[] toArray(K[] a) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported, a Bloom filter cannot forget an element.
+     */
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported, a Bloom filter cannot forget an element.
+     */
+    public boolean retainAll(Collection<?> c) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported, a Bloom filter cannot forget an element.
+     */
+    public boolean removeAll(Collection<?> c) {
+        throw new UnsupportedOperationException();
+    }
+
+    private long bitIndex(long hash) {
+        return (hash & Long.MAX_VALUE) % bitCount;
+    }
+
+    private static long hash1(Object o) {
+        return mix(System.identityHashCode(o));
+    }
+
+    private static long hash2(Object o) {
+        // forced odd so that the probe sequence never degenerates to a single bit
+        return mix(System.identityHashCode(o) ^ 0x5DEECE66DL) | 1;
+    }
+
+    /**
+     * The MurmurHash3 64-bit finalizer.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * A tracker provider creating <code>BloomFilterSet</code>s, which knows the error bound of the measurements using
+     * them.
+     */
+    public static final class Provider<T> implements Callable<Set<T>> {
+
+        private final int expectedSize;
+
+        private final double falsePositiveProbability;
+
+        private Provider(int expectedSize, double falsePositiveProbability) {
+            checkArguments(expectedSize, falsePositiveProbability);
+            this.expectedSize = expectedSize;
+            this.falsePositiveProbability = falsePositiveProbability;
+        }
+
+        public Set<T> call() throws Exception {
+            return new BloomFilterSet<T>(expectedSize, falsePositiveProbability);
+        }
+
+        /**
+         * @return the number of objects a measurement is expected to visit
+         */
+        public int expectedSize() {
+            return expectedSize;
+        }
+
+        /**
+         * @return the maximum probability for an object to be wrongly considered as already visited, as long as a
+         * measurement visits at most <code>expectedSize()</code> objects
+         */
+        public double errorBound() {
+            long bitCount = bitCountFor(expectedSize, falsePositiveProbability);
+            return falsePositiveProbability(hashCountFor(expectedSize, bitCount), bitCount, expectedSize);
+        }
+    }
+}
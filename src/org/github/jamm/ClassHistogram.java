@@ -0,0 +1,217 @@
+package org.github.jamm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The number of instances and the shallow memory usage per class of the objects reachable from a root, like the class
+ * histogram of <code>jmap -histo</code> restricted to a single object graph. Obtained from
+ * <code>MemoryMeter.measureHistogram</code>.
+ * <p>
+ * The histogram is built by listening to the measured objects: the counters of each class are kept in a single entry
+ * created the first time an instance of the class is measured, so no allocation happens per measured object.
+ */
+public final class ClassHistogram {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    /**
+     * Orders the entries by decreasing memory usage, then by decreasing number of instances.
+     */
+    private static final Comparator<Entry> BY_BYTES = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            if (e1.bytes != e2.bytes)
+                return e1.bytes > e2.bytes ? -1 : 1;
+            if (e1.instances != e2.instances)
+                return e1.instances > e2.instances ? -1 : 1;
+            return e1.type.getName().compareTo(e2.type.getName());
+        }
+    };
+
+    private final Map<Class<?>, Entry> entries = new IdentityHashMap<Class<?>, Entry>();
+
+    /**
+     * The entry of the last class measured, as objects of the same class are often measured in a row.
+     */
+    private Entry last;
+
+    private long totalInstances;
+
+    private long totalBytes;
+
+    ClassHistogram() {
+    }
+
+    /**
+     * The instances of a class and their shallow memory usage.
+     */
+    public static final class Entry {
+
+        private final Class<?> type;
+
+        private long instances;
+
+        private long bytes;
+
+        private Entry(Class<?> type) {
+            this.type = type;
+        }
+
+        /**
+         * @return the class
+         */
+        public Class<?> type() {
+            return type;
+        }
+
+        /**
+         * @return the number of instances of the class
+         */
+        public long instances() {
+            return instances;
+        }
+
+        /**
+         * @return the shallow memory usage of the instances of the class
+         */
+        public long bytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[instances=%d, bytes=%d]", type.getName(), instances, bytes);
+        }
+    }
+
+    /**
+     * @return the listener filling this histogram
+     */
+    MemoryMeterListener listener() {
+        return new Listener();
+    }
+
+    /**
+     * Counts the measured objects in the entries of their classes.
+     */
+    private final class Listener implements MemoryMeterListener {
+
+        @Override
+        public void started(Object obj) {
+        }
+
+        @Override
+        public void fieldAdded(Object obj, String fieldName, Object fieldValue) {
+        }
+
+        @Override
+        public void elementAdded(Object[] array, int index, Object element) {
+        }
+
+        @Override
+        public void objectMeasured(Object current, long size) {
+            Entry entry = entryFor(current.getClass());
+            entry.instances++;
+            entry.bytes += size;
+            totalInstances++;
+            totalBytes += size;
+        }
+
+        @Override
+        public void objectCounted(Object current) {
+            entryFor(current.getClass()).instances++;
+            totalInstances++;
+        }
+
+        @Override
+        public void done(long size) {
+        }
+    }
+
+    private Entry entryFor(Class<?> type) {
+        Entry entry = last;
+        if (entry != null && entry.type == type)
+            return entry;
+
+        entry = entries.get(type);
+        if (entry == null) {
+            entry = new Entry(type);
+            entries.put(type, entry);
+        }
+        last = entry;
+        return entry;
+    }
+
+    /**
+     * @return the number of distinct classes
+     */
+    public int classCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total number of instances
+     */
+    public long totalInstances() {
+        return totalInstances;
+    }
+
+    /**
+     * @return the total shallow memory usage of the instances
+     */
+    public long totalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return the entry of the specified class, or null if no instance of that class was measured
+     */
+    public Entry get(Class<?> type) {
+        return entries.get(type);
+    }
+
+    /**
+     * Returns the entries of the classes using the most memory.
+     *
+     * @param n the maximum number of entries to return
+     * @return at most n entries, sorted by decreasing memory usage
+     * @throws IllegalArgumentException if n is negative
+     */
+    public List<Entry> top(int n) {
+        if (n < 0)
+            throw new IllegalArgumentException(String.format("the number of entries must not be negative (was %s).", n));
+
+        List<Entry> sorted = new ArrayList<Entry>(entries.values());
+        Collections.sort(sorted, BY_BYTES);
+        return sorted.size() > n ? new ArrayList<Entry>(sorted.subList(0, n)) : sorted;
+    }
+
+    /**
+     * @return all the entries, sorted by decreasing memory usage
+     */
+    public List<Entry> entries() {
+        return top(entries.size());
+    }
+
+    /**
+     * @return the histogram in the format of <code>jmap -histo</code>
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(" num     #instances         #bytes  class name").append(LINE_SEPARATOR);
+        builder.append("----------------------------------------------").append(LINE_SEPARATOR);
+        int num = 0;
+        for (Entry entry : entries()) {
+            builder.append(String.format("%4d: %14d %14d  %s", ++num, entry.instances, entry.bytes, entry.type.getName()))
+                   .append(LINE_SEPARATOR);
+        }
+        builder.append(String.format("Total %14d %14d", totalInstances, totalBytes)).append(LINE_SEPARATOR);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package org.github.jamm;
+
+import java.lang.reflect.Field;
+
+/**
+ * The information <code>MemoryMeter</code> needs to crawl the instances of a given class.
+ * <p>
+ * It is computed once, the first time an instance of the class is visited, and then reused for all the other
+ * instances, so that crawling an object only requires reading its fields. The reference fields to follow are only
+ * computed when an instance of the class is crawled for the first time, as most classes are only checked for being
+ * ignored or, for the arrays, for their elements being known. The shallow size of the instances is kept by the
+ * <code>ShallowLayout</code> of the class.
+ */
+final class ClassLayout {
+
+    /**
+     * <code>true</code> if the class is an array class whose elements can never be ignored, so that they do not have
+     * to be checked one by one when crawling an instance.
+     */
+    final boolean knownElements;
+
+    /**
+     * <code>true</code> if the instances of the class must not be measured nor crawled, either because the class is
+     * <code>@Unmetered</code> or because the <code>MemoryMeter</code> ignores it.
+     */
+    final boolean ignored;
+
+    /**
+     * The names of the reference fields, declared by the class or one of its superclasses, that must be followed when
+     * crawling an instance. The fields have already been filtered according to the <code>MemoryMeter</code> settings.
+     */
+    private String[] referenceNames;
+
+    /**
+     * The reference fields, or <code>null</code> if they are read with <code>sun.misc.Unsafe</code> and were loaded
+     * from a <code>LayoutCache</code>.
+     */
+    private Field[] referenceFields;
+
+    /**
+     * The <code>sun.misc.Unsafe</code> offsets of the reference fields, or <code>null</code> if the fields must be
+     * read through reflection.
+     */
+    private long[] referenceOffsets;
+
+    /**
+     * The handler crawling the instances of the class if their children are known, or <code>null</code> if they must
+     * be crawled through the reference fields.
+     */
+    private TypeHandler handler;
+
+    /**
+     * <code>true</code> once the fields above have been set, which publishes them to the other threads.
+     */
+    private volatile boolean initialized;
+
+    ClassLayout(boolean knownElements, boolean ignored) {
+        this.knownElements = knownElements;
+        this.ignored = ignored;
+    }
+
+    /**
+     * @return <code>true</code> if the reference fields of the class have been set, see <code>initialize</code>
+     */
+    boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * Sets the reference fields of the class, making them accessible if they are read through reflection. This must
+     * be called once, before the first instance of the class is crawled.
+     *
+     * @param referenceNames the names of the reference fields that must be followed
+     * @param referenceFields the fields, or <code>null</code> if they are read at their offsets
+     * @param referenceOffsets the <code>sun.misc.Unsafe</code> offsets of the fields, or <code>null</code>
+     * @param handler the handler crawling the instances, or <code>null</code>
+     */
+    void initialize(String[] referenceNames, Field[] referenceFields, long[] referenceOffsets, TypeHandler handler) {
+        if (referenceOffsets == null && handler == null) {
+            for (Field field : referenceFields)
+                field.setAccessible(true);
+        }
+        this.referenceNames = referenceNames;
+        this.referenceFields = referenceFields;
+        this.referenceOffsets = referenceOffsets;
+        this.handler = handler;
+        this.initialized = true;
+    }
+
+    /**
+     * @return the handler crawling the instances of the class, or <code>null</code> if they must be crawled through
+     * the reference fields
+     */
+    TypeHandler handler() {
+        return handler;
+    }
+
+    /**
+     * @return the names of the reference fields that must be followed when crawling an instance
+     */
+    String[] referenceNames() {
+        return referenceNames;
+    }
+
+    /**
+     * @return the reference fields that must be followed when crawling an instance, or <code>null</code> if they were
+     * loaded from a <code>LayoutCache</code>
+     */
+    Field[] referenceFields() {
+        return referenceFields;
+    }
+
+    /**
+     * Returns the value of the specified reference field for the specified instance.
+     *
+     * @param obj an instance of the class
+     * @param index the index of the field within <code>referenceNames()</code>
+     * @return the field value
+     */
+    Object referenceFieldValue(Object obj, int index) {
+        if (referenceOffsets != null)
+            return UnsafeAccess.unsafe.getObject(obj, referenceOffsets[index]);
+
+        try {
+            return referenceFields[index].get(obj);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
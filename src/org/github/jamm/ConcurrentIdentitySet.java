@@ -0,0 +1,75 @@
+package org.github.jamm;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+/**
+ * A thread-safe identity <code>Set</code> used to track the objects visited by parallel measurements.
+ * <p>
+ * The elements are spread over independently locked <code>IdentityHashSet</code> stripes, selected from the identity
+ * hash code of the elements, so that threads adding different objects rarely contend. Only the operations needed by
+ * <code>MemoryMeter</code> are supported.
+ */
+final class ConcurrentIdentitySet extends AbstractSet<Object> {
+
+    private final IdentityHashSet<Object>[] stripes;
+
+    private final int shift;
+
+    /**
+     * @param concurrency the number of threads expected to use the set concurrently
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ConcurrentIdentitySet(int concurrency) {
+        int stripeCount = 1;
+        while (stripeCount < concurrency * 16)
+            stripeCount <<= 1;
+        stripes = new IdentityHashSet[stripeCount];
+        for (int i = 0; i < stripeCount; i++)
+            stripes[i] = new IdentityHashSet<Object>();
+        shift = Integer.SIZE - Integer.numberOfTrailingZeros(stripeCount);
+    }
+
+    @Override
+    public boolean add(Object o) {
+        IdentityHashSet<Object> stripe = stripeFor(o);
+        synchronized (stripe) {
+            return stripe.add(o);
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null)
+            return false;
+
+        IdentityHashSet<Object> stripe = stripeFor(o);
+        synchronized (stripe) {
+            return stripe.contains(o);
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (IdentityHashSet<Object> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Not supported.
+     */
+    @Override
+    public Iterator<Object> iterator() {
+        throw new UnsupportedOperationException();
+    }
+
+    private IdentityHashSet<Object> stripeFor(Object o) {
+        // the top bits select the stripe while IdentityHashSet relies on the low bits
+        return stripes[(System.identityHashCode(o) * 0x7FEB352D) >>> shift];
+    }
+}
@@ -0,0 +1,50 @@
+package org.github.jamm;
+
+/**
+ * The result of a deep measurement that may stop before the whole object graph has been crawled, like
+ * <code>MemoryMeter.measureDeepUpTo</code>.
+ * <p>
+ * If the measurement stopped early the bytes and objects are lower bounds: the graph uses at least that much memory,
+ * but the objects left uncrawled are not accounted for.
+ */
+public final class DeepMeasurement {
+
+    private final long bytes;
+
+    private final long objects;
+
+    private final boolean lowerBound;
+
+    DeepMeasurement(long bytes, long objects, boolean lowerBound) {
+        this.bytes = bytes;
+        this.objects = objects;
+        this.lowerBound = lowerBound;
+    }
+
+    /**
+     * @return the memory usage of the objects measured
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of objects measured
+     */
+    public long objects() {
+        return objects;
+    }
+
+    /**
+     * @return <code>true</code> if the measurement stopped before the whole graph was crawled, in which case
+     * <code>bytes()</code> and <code>objects()</code> are lower bounds
+     */
+    public boolean isLowerBound() {
+        return lowerBound;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DeepMeasurement[bytes=%s%d, objects=%d]", lowerBound ? ">=" : "", bytes, objects);
+    }
+}
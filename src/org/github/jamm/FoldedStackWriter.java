@@ -0,0 +1,198 @@
+package org.github.jamm;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A memory listener that writes the memory usage of the measured graph in the folded-stack format used to render
+ * flame graphs: one line per path of field names from the root and class of the objects at the end of that path, with
+ * their total size (or number of objects when counting), like <code>root;table;[];java.util.HashMap$Node 32000</code>.
+ * The elements of an array are all reached through the <code>[]</code> field, so that they are aggregated.
+ * <p>
+ * Unlike <code>TreePrinter</code>, no information is kept per object: the sizes are aggregated per distinct path as the
+ * objects are measured, and the objects deeper than the maximum depth are aggregated with their ancestor at that depth.
+ * The path of each object waiting to be crawled is kept in a stack mirroring the crawl stack of the meter, which pushes
+ * one object per <code>fieldAdded</code> or <code>elementAdded</code> event and pops one per
+ * <code>objectMeasured</code> or <code>objectCounted</code> event. The lines are written to the writer when the
+ * measurement is done, as the totals of a path are only known at the end, or when it is stopped by the limits of
+ * <code>measureDeepUpTo</code>. Nothing is written for a <code>MeasurementCursor</code> that is not advanced to the end.
+ */
+final class FoldedStackWriter implements MemoryMeterListener {
+
+    private static final String ROOT_FRAME = "root";
+
+    private static final String ELEMENT_FRAME = "[]";
+
+    private final Writer writer;
+
+    private final int maxDepth;
+
+    private final PathNode root = new PathNode(ROOT_FRAME, 0);
+
+    /**
+     * The paths of the objects waiting to be crawled, in the order of the crawl stack.
+     */
+    private final Deque<PathNode> pending = new ArrayDeque<PathNode>();
+
+    /**
+     * The path of the object being crawled.
+     */
+    private PathNode currentPath;
+
+    FoldedStackWriter(Writer writer, int maxDepth) {
+        this.writer = writer;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * A distinct path from the root, with the total size of the objects at the end of that path per class.
+     */
+    private static final class PathNode {
+
+        private final String frame;
+
+        private final int depth;
+
+        private Map<String, PathNode> children;
+
+        private Map<Class<?>, long[]> totals;
+
+        private PathNode(String frame, int depth) {
+            this.frame = frame;
+            this.depth = depth;
+        }
+
+        private PathNode child(String frame, int maxDepth) {
+            if (depth == maxDepth)
+                return this;
+
+            if (children == null)
+                children = new HashMap<String, PathNode>();
+            PathNode child = children.get(frame);
+            if (child == null) {
+                child = new PathNode(frame, depth + 1);
+                children.put(frame, child);
+            }
+            return child;
+        }
+
+        private void add(Class<?> type, long value) {
+            if (totals == null)
+                totals = new IdentityHashMap<Class<?>, long[]>();
+            long[] total = totals.get(type);
+            if (total == null) {
+                total = new long[1];
+                totals.put(type, total);
+            }
+            total[0] += value;
+        }
+    }
+
+    @Override
+    public void started(Object obj) {
+        pending.push(root);
+    }
+
+    @Override
+    public void fieldAdded(Object obj, String fieldName, Object fieldValue) {
+        // the children being added are always those of the object being crawled
+        pending.push(currentPath.child(fieldName, maxDepth));
+    }
+
+    @Override
+    public void elementAdded(Object[] array, int index, Object element) {
+        pending.push(currentPath.child(ELEMENT_FRAME, maxDepth));
+    }
+
+    @Override
+    public void objectMeasured(Object current, long size) {
+        crawled().add(current.getClass(), size);
+    }
+
+    @Override
+    public void objectCounted(Object current) {
+        crawled().add(current.getClass(), 1);
+    }
+
+    @Override
+    public void done(long size) {
+        try {
+            write();
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Records that the object on top of the crawl stack is being crawled.
+     *
+     * @return the path of the object
+     */
+    private PathNode crawled() {
+        currentPath = pending.pop();
+        return currentPath;
+    }
+
+    /**
+     * Writes the lines of all the paths, walking them depth-first with an explicit stack as the paths can be as deep
+     * as the maximum depth.
+     */
+    private void write() throws IOException {
+        StringBuilder prefix = new StringBuilder();
+        // the length of the prefix of the paths at each depth, which is the one of their parent followed by a separator
+        int[] prefixLengths = new int[maxDepth + 2];
+        Deque<PathNode> stack = new ArrayDeque<PathNode>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            PathNode path = stack.pop();
+            prefix.setLength(prefixLengths[path.depth]);
+            prefix.append(path.frame).append(';');
+            prefixLengths[path.depth + 1] = prefix.length();
+
+            if (path.totals != null) {
+                for (Map.Entry<Class<?>, long[]> e : path.totals.entrySet()) {
+                    writer.append(prefix)
+                          .append(className(e.getKey()))
+                          .append(' ')
+                          .append(Long.toString(e.getValue()[0]))
+                          .append('\n');
+                }
+            }
+
+            if (path.children != null) {
+                for (PathNode child : path.children.values())
+                    stack.push(child);
+            }
+        }
+    }
+
+    private static String className(Class<?> type) {
+        return type.isArray() ? className(type.getComponentType()) + "[]" : type.getName();
+    }
+
+    /**
+     * Factory for <code>FoldedStackWriter</code> instances writing to the same writer.
+     */
+    static final class Factory implements MemoryMeterListener.Factory {
+
+        private final Writer writer;
+
+        private final int maxDepth;
+
+        Factory(Writer writer, int maxDepth) {
+            this.writer = writer;
+            this.maxDepth = maxDepth;
+        }
+
+        @Override
+        public MemoryMeterListener newInstance() {
+            return new FoldedStackWriter(writer, maxDepth);
+        }
+    }
+}
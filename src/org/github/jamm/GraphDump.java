@@ -0,0 +1,430 @@
+package org.github.jamm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An object graph exported by <code>MemoryMeter.measureDeepToFile</code>, read back for offline analysis, possibly
+ * in another JVM than the one which measured it: the totals, the class histogram, and the tree of the objects in the
+ * order the graph was crawled (each object being the child of the object through which it was first reached).
+ * <p>
+ * The file is read through memory mapping, and the objects are kept in primitive arrays indexed by their id. The root
+ * has the id 0 and a parent always has a lower id than its children.
+ */
+public final class GraphDump {
+
+    /**
+     * The maximum size of the file regions mapped at once.
+     */
+    private static final int MAX_REGION_SIZE = 1 << 30;
+
+    private final String[] strings;
+
+    private final int objectCount;
+
+    private final int[] parents;
+
+    /**
+     * The name of the field through which each object was reached (as a string id), or -1 for an array element.
+     */
+    private final int[] fields;
+
+    /**
+     * The index of the array element through which each object was reached, if it was.
+     */
+    private final int[] indexes;
+
+    /**
+     * The class name of each object, as a string id, or -1 if the object has not been measured.
+     */
+    private final int[] classes;
+
+    private final long[] sizes;
+
+    private final long[] deepSizes;
+
+    /**
+     * The size of the whole graph recorded with the end of the export, or -1 if the export did not complete.
+     */
+    private final long total;
+
+    private final boolean complete;
+
+    private int[] childStart;
+
+    private int[] children;
+
+    private GraphDump(String[] strings,
+                      int objectCount,
+                      int[] parents,
+                      int[] fields,
+                      int[] indexes,
+                      int[] classes,
+                      long[] sizes,
+                      long total) {
+        this.strings = strings;
+        this.objectCount = objectCount;
+        this.parents = parents;
+        this.fields = fields;
+        this.indexes = indexes;
+        this.classes = classes;
+        this.sizes = sizes;
+        this.total = total;
+        this.complete = total >= 0;
+
+        deepSizes = Arrays.copyOf(sizes, objectCount);
+        for (int id = objectCount - 1; id > 0; id--)
+            deepSizes[parents[id]] += deepSizes[id];
+    }
+
+    /**
+     * Reads the graph exported to the specified file.
+     *
+     * @throws IOException if the file could not be read or is not a graph exported by MemoryMeter
+     */
+    public static GraphDump read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return new Reader(raf.getChannel()).read();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the export went through the whole graph
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the number of objects in the graph
+     */
+    public int objectCount() {
+        return objectCount;
+    }
+
+    /**
+     * Returns the memory usage of the whole graph: the total recorded at the end of the export, as returned by
+     * <code>measureDeepToFile</code>, or the deep size of the root if the export did not complete.
+     *
+     * @return the memory usage of the whole graph
+     */
+    public long totalBytes() {
+        if (complete)
+            return total;
+        return objectCount == 0 ? 0 : deepSizes[0];
+    }
+
+    /**
+     * @return the class name of the specified object
+     */
+    public String className(int id) {
+        checkId(id);
+        return classes[id] < 0 ? null : strings[classes[id]];
+    }
+
+    /**
+     * @return the shallow memory usage of the specified object
+     */
+    public long shallowBytes(int id) {
+        checkId(id);
+        return sizes[id];
+    }
+
+    /**
+     * @return the memory usage of the specified object and of all its descendants in the tree
+     */
+    public long deepBytes(int id) {
+        checkId(id);
+        return deepSizes[id];
+    }
+
+    /**
+     * @return the id of the parent of the specified object, or -1 for the root
+     */
+    public int parent(int id) {
+        checkId(id);
+        return id == 0 ? -1 : parents[id];
+    }
+
+    /**
+     * @return the name of the field of the parent through which the specified object was reached, the index for an
+     * array element, or null for the root
+     */
+    public String field(int id) {
+        checkId(id);
+        if (id == 0)
+            return null;
+        return fields[id] < 0 ? Integer.toString(indexes[id]) : strings[fields[id]];
+    }
+
+    /**
+     * @return the ids of the children of the specified object in the tree
+     */
+    public int[] children(int id) {
+        checkId(id);
+        if (childStart == null)
+            indexChildren();
+        return Arrays.copyOfRange(children, childStart[id], childStart[id + 1]);
+    }
+
+    /**
+     * @return the number of instances and the shallow memory usage per class name, sorted by decreasing memory usage
+     */
+    public List<ClassTotal> histogram() {
+        long[] instances = new long[strings.length];
+        long[] bytes = new long[strings.length];
+        for (int id = 0; id < objectCount; id++) {
+            if (classes[id] >= 0) {
+                instances[classes[id]]++;
+                bytes[classes[id]] += sizes[id];
+            }
+        }
+
+        List<ClassTotal> histogram = new ArrayList<ClassTotal>();
+        for (int i = 0; i < strings.length; i++) {
+            if (instances[i] > 0)
+                histogram.add(new ClassTotal(strings[i], instances[i], bytes[i]));
+        }
+        Collections.sort(histogram, new Comparator<ClassTotal>() {
+            @Override
+            public int compare(ClassTotal t1, ClassTotal t2) {
+                if (t1.bytes != t2.bytes)
+                    return t1.bytes > t2.bytes ? -1 : 1;
+                return t1.className.compareTo(t2.className);
+            }
+        });
+        return histogram;
+    }
+
+    /**
+     * The instances of a class in the graph and their shallow memory usage.
+     */
+    public static final class ClassTotal {
+
+        private final String className;
+
+        private final long instances;
+
+        private final long bytes;
+
+        private ClassTotal(String className, long instances, long bytes) {
+            this.className = className;
+            this.instances = instances;
+            this.bytes = bytes;
+        }
+
+        public String className() {
+            return className;
+        }
+
+        public long instances() {
+            return instances;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[instances=%d, bytes=%d]", className, instances, bytes);
+        }
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= objectCount)
+            throw new IndexOutOfBoundsException(String.format("Invalid object id (was %d, object count is %d).", id, objectCount));
+    }
+
+    private void indexChildren() {
+        int[] start = new int[objectCount + 1];
+        for (int id = 1; id < objectCount; id++)
+            start[parents[id] + 1]++;
+        for (int id = 0; id < objectCount; id++)
+            start[id + 1] += start[id];
+        int[] next = Arrays.copyOf(start, objectCount);
+        int[] ids = new int[Math.max(0, objectCount - 1)];
+        for (int id = 1; id < objectCount; id++)
+            ids[next[parents[id]]++] = id;
+        children = ids;
+        childStart = start;
+    }
+
+    /**
+     * Reads the records of an exported graph from a file mapped by regions of at most MAX_REGION_SIZE bytes.
+     */
+    private static final class Reader {
+
+        private final FileChannel channel;
+
+        private final long fileSize;
+
+        private MappedByteBuffer region;
+
+        private long regionStart;
+
+        private String[] strings = new String[64];
+
+        private int stringCount;
+
+        private int objectCount = 1;
+
+        private int[] parents = new int[64];
+
+        private int[] fields = new int[64];
+
+        private int[] indexes = new int[64];
+
+        private int[] classes = new int[64];
+
+        private long[] sizes = new long[64];
+
+        private Reader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.fileSize = channel.size();
+            map(0);
+            Arrays.fill(classes, -1);
+        }
+
+        private GraphDump read() throws IOException {
+            ensure(5);
+            if (region.getInt() != GraphExporter.MAGIC)
+                throw new IOException("Not a graph exported by MemoryMeter");
+            byte version = region.get();
+            if (version != GraphExporter.VERSION)
+                throw new IOException(String.format("Unsupported format version (was %d).", version));
+
+            long total = -1;
+            while (position() < fileSize) {
+                ensure(1);
+                byte tag = region.get();
+                switch (tag) {
+                    case GraphExporter.STRING:
+                        readString();
+                        break;
+                    case GraphExporter.FIELD:
+                        addObject(readInt(), readInt(), 0);
+                        break;
+                    case GraphExporter.ELEMENT:
+                        addObject(readInt(), -1, readInt());
+                        break;
+                    case GraphExporter.OBJECT:
+                        int id = readObjectId();
+                        classes[id] = readStringId();
+                        sizes[id] = readLong();
+                        break;
+                    case GraphExporter.DONE:
+                        total = readLong();
+                        if (total < 0)
+                            throw new IOException(String.format("Corrupted file: invalid total (was %d).", total));
+                        break;
+                    default:
+                        throw new IOException(String.format("Corrupted file: invalid record tag (was %d).", tag));
+                }
+            }
+            return new GraphDump(Arrays.copyOf(strings, stringCount), objectCount, parents, fields, indexes, classes, sizes, total);
+        }
+
+        private void readString() throws IOException {
+            int length = readInt();
+            byte[] bytes = new byte[length];
+            for (int offset = 0; offset < length; ) {
+                ensure(1);
+                int n = Math.min(region.remaining(), length - offset);
+                region.get(bytes, offset, n);
+                offset += n;
+            }
+            if (stringCount == strings.length)
+                strings = Arrays.copyOf(strings, stringCount * 2);
+            strings[stringCount++] = new String(bytes, GraphExporter.UTF_8);
+        }
+
+        private void addObject(int parent, int field, int index) throws IOException {
+            if (parent >= objectCount)
+                throw new IOException(String.format("Corrupted file: invalid object id (was %d).", parent));
+            if (field >= stringCount)
+                throw new IOException(String.format("Corrupted file: invalid string id (was %d).", field));
+
+            int id = objectCount++;
+            if (id == parents.length) {
+                int capacity = id * 2;
+                parents = Arrays.copyOf(parents, capacity);
+                fields = Arrays.copyOf(fields, capacity);
+                indexes = Arrays.copyOf(indexes, capacity);
+                classes = Arrays.copyOf(classes, capacity);
+                Arrays.fill(classes, id, capacity, -1);
+                sizes = Arrays.copyOf(sizes, capacity);
+            }
+            parents[id] = parent;
+            fields[id] = field;
+            indexes[id] = index;
+        }
+
+        private int readObjectId() throws IOException {
+            int id = readInt();
+            if (id >= objectCount)
+                throw new IOException(String.format("Corrupted file: invalid object id (was %d).", id));
+            return id;
+        }
+
+        private int readStringId() throws IOException {
+            int id = readInt();
+            if (id >= stringCount)
+                throw new IOException(String.format("Corrupted file: invalid string id (was %d).", id));
+            return id;
+        }
+
+        private int readInt() throws IOException {
+            long value = readLong();
+            if (value < 0 || value > Integer.MAX_VALUE)
+                throw new IOException(String.format("Corrupted file: invalid int (was %d).", value));
+            return (int) value;
+        }
+
+        private long readLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                ensure(1);
+                byte b = region.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0)
+                    return value;
+            }
+            throw new IOException("Corrupted file: invalid varint");
+        }
+
+        private long position() {
+            return regionStart + region.position();
+        }
+
+        /**
+         * Makes sure the specified number of bytes can be read from the current region, mapping the next region if
+         * needed.
+         */
+        private void ensure(int size) throws IOException {
+            if (region.remaining() >= size)
+                return;
+            long position = position();
+            if (position + size > fileSize)
+                throw new IOException("Corrupted file: unexpected end of file");
+            map(position);
+        }
+
+        private void map(long position) throws IOException {
+            regionStart = position;
+            region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_REGION_SIZE, fileSize - position));
+        }
+    }
+}
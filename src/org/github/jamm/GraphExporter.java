@@ -0,0 +1,210 @@
+package org.github.jamm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A memory listener writing the measured graph to a file in a compact binary format, so that it can be analyzed by
+ * <code>GraphDump</code> in another JVM.
+ * <p>
+ * The file starts with the magic number and the format version, followed by records made of a tag byte and of
+ * unsigned LEB128 varints:
+ * <ul>
+ * <li><code>STRING length bytes</code>: a class or field name in UTF-8, whose id is the number of strings before it</li>
+ * <li><code>FIELD parent name</code>: the object reached through the named field of the parent object</li>
+ * <li><code>ELEMENT parent index</code>: the object reached through the element of the parent array</li>
+ * <li><code>OBJECT object class size</code>: the class name and shallow size of a measured object</li>
+ * <li><code>DONE total</code>: the size of the whole graph</li>
+ * </ul>
+ * The root has the id 0, and each FIELD or ELEMENT record gives the next id to the object it introduces, so the ids
+ * are implicit and a parent always has a lower id than its children. The ids of the objects waiting to be crawled are
+ * the only information kept per object.
+ * <p>
+ * The records are buffered in a direct buffer written to the channel when full. The first I/O error stops the
+ * export, and is reported by <code>finish</code>.
+ */
+final class GraphExporter implements MemoryMeterListener {
+
+    static final int MAGIC = 0x4A414D4D; // "JAMM"
+
+    static final byte VERSION = 1;
+
+    static final byte STRING = 1;
+
+    static final byte FIELD = 2;
+
+    static final byte ELEMENT = 3;
+
+    static final byte OBJECT = 4;
+
+    static final byte DONE = 5;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The maximum size of a record other than STRING.
+     */
+    private static final int MAX_RECORD_SIZE = 1 + 5 + 5 + 10;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    private final Map<String, Integer> fieldNames = new HashMap<String, Integer>();
+
+    private final Map<Class<?>, Integer> classNames = new IdentityHashMap<Class<?>, Integer>();
+
+    private int stringCount;
+
+    /**
+     * The ids of the objects waiting to be crawled.
+     */
+    private final IdentityIntMap pending = new IdentityIntMap(-1);
+
+    private int objectCount;
+
+    /**
+     * The object being crawled and its id.
+     */
+    private Object current;
+
+    private int currentId;
+
+    private IOException failure;
+
+    GraphExporter(FileChannel channel) {
+        this.channel = channel;
+        buffer.putInt(MAGIC).put(VERSION);
+    }
+
+    @Override
+    public void started(Object obj) {
+        pending.put(obj, objectCount++);
+    }
+
+    @Override
+    public void fieldAdded(Object obj, String fieldName, Object fieldValue) {
+        Integer name = fieldNames.get(fieldName);
+        if (name == null)
+            name = newString(fieldNames, fieldName, fieldName);
+        if (ensure(MAX_RECORD_SIZE)) {
+            buffer.put(FIELD);
+            putVarint(idOf(obj));
+            putVarint(name);
+        }
+        pending.put(fieldValue, objectCount++);
+    }
+
+    @Override
+    public void elementAdded(Object[] array, int index, Object element) {
+        if (ensure(MAX_RECORD_SIZE)) {
+            buffer.put(ELEMENT);
+            putVarint(idOf(array));
+            putVarint(index);
+        }
+        pending.put(element, objectCount++);
+    }
+
+    @Override
+    public void objectMeasured(Object current, long size) {
+        this.current = current;
+        this.currentId = pending.remove(current);
+
+        Class<?> type = current.getClass();
+        Integer name = classNames.get(type);
+        if (name == null)
+            name = newString(classNames, type, type.getName());
+        if (ensure(MAX_RECORD_SIZE)) {
+            buffer.put(OBJECT);
+            putVarint(currentId);
+            putVarint(name);
+            putVarint(size);
+        }
+    }
+
+    @Override
+    public void objectCounted(Object current) {
+        objectMeasured(current, 0);
+    }
+
+    @Override
+    public void done(long size) {
+        if (ensure(MAX_RECORD_SIZE)) {
+            buffer.put(DONE);
+            putVarint(size);
+        }
+    }
+
+    /**
+     * Writes the buffered records to the channel.
+     *
+     * @throws IOException if an I/O error occurred during the export
+     */
+    void finish() throws IOException {
+        if (failure == null)
+            flush();
+        if (failure != null)
+            throw failure;
+    }
+
+    private int idOf(Object obj) {
+        // the children being added are always those of the object being crawled
+        return obj == current ? currentId : pending.get(obj);
+    }
+
+    private <K> int newString(Map<K, Integer> ids, K key, String value) {
+        int id = stringCount++;
+        ids.put(key, id);
+
+        byte[] bytes = value.getBytes(UTF_8);
+        if (ensure(1 + 5)) {
+            buffer.put(STRING);
+            putVarint(bytes.length);
+        }
+        for (int offset = 0; offset < bytes.length; ) {
+            if (!ensure(1))
+                break;
+            int length = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, length);
+            offset += length;
+        }
+        return id;
+    }
+
+    /**
+     * Makes sure the buffer has room for the specified number of bytes, flushing it if needed.
+     *
+     * @return false if the export has failed
+     */
+    private boolean ensure(int size) {
+        if (buffer.remaining() < size)
+            flush();
+        return failure == null;
+    }
+
+    private void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        } catch (IOException e) {
+            failure = e;
+        }
+        buffer.clear();
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
@@ -0,0 +1,336 @@
+package org.github.jamm;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Computes the size of the instances of a class by reproducing the way HotSpot allocates their fields, so that it
+ * matches what <code>Instrumentation.getObjectSize</code> reports without calling it.
+ * <p>
+ * HotSpot has two generations of field layout:
+ * <ul>
+ * <li>up to JDK 14, each class lays out its own fields after the fields of its superclass (rounded to the size of a
+ * reference), grouped by decreasing size, with the references first or last depending on
+ * <code>FieldsAllocationStyle</code>. The only gap filled (with <code>CompactFields</code>) is the one before the
+ * first long or double of the class, when its fields do not start on 8 bytes.</li>
+ * <li>from JDK 15, the fields of a class are allocated one by one, the primitives by decreasing size and then the
+ * references, each in the smallest gap it fits in, including the gaps left by the superclasses (with
+ * <code>UseEmptySlotsInSupers</code>), or else at the end.</li>
+ * </ul>
+ * The fields injected by the JVM into a few JDK classes (e.g. <code>Class</code>, <code>Throwable</code>), the fields
+ * hidden from reflection and <code>@Contended</code> fields are not accounted for.
+ */
+final class HotSpotFieldLayout {
+
+    /**
+     * The JDK classes with hard-coded field offsets, whose fields are laid out with the references first and without
+     * filling any gap up to JDK 14.
+     */
+    private static final Set<String> HARD_CODED_OFFSETS = new HashSet<String>(Arrays.asList("java.lang.AssertionStatusDirectives",
+                                                                                              "java.lang.Class",
+                                                                                              "java.lang.ClassLoader",
+                                                                                              "java.lang.ref.Reference",
+                                                                                              "java.lang.ref.SoftReference",
+                                                                                              "java.lang.StackTraceElement",
+                                                                                              "java.lang.String",
+                                                                                              "java.lang.Throwable",
+                                                                                              "java.lang.Boolean",
+                                                                                              "java.lang.Character",
+                                                                                              "java.lang.Float",
+                                                                                              "java.lang.Double",
+                                                                                              "java.lang.Byte",
+                                                                                              "java.lang.Short",
+                                                                                              "java.lang.Integer",
+                                                                                              "java.lang.Long"));
+
+    /**
+     * Orders the fields by decreasing size.
+     */
+    private static final Comparator<Block> DECREASING_SIZE = new Comparator<Block>() {
+        @Override
+        public int compare(Block b1, Block b2) {
+            return b2.size - b1.size;
+        }
+    };
+
+    /**
+     * Orders the blocks by offset.
+     */
+    private static final Comparator<Block> OFFSET = new Comparator<Block>() {
+        @Override
+        public int compare(Block b1, Block b2) {
+            return b1.offset - b2.offset;
+        }
+    };
+
+    private final int headerSize;
+
+    private final int referenceSize;
+
+    private final int objectAlignment;
+
+    private final boolean legacy;
+
+    private final boolean compactFields;
+
+    private final boolean referencesFirst;
+
+    private final boolean emptySlotsInSupers;
+
+    /**
+     * @param headerSize the size of the object header
+     * @param referenceSize the size of a reference
+     * @param objectAlignment the alignment of the objects
+     * @param javaVersion the feature version of the JVM, e.g. 8 or 17
+     * @param compactFields the value of the -XX:CompactFields flag, used up to JDK 14
+     * @param fieldsAllocationStyle the value of the -XX:FieldsAllocationStyle flag, used up to JDK 14: 0 to allocate
+     * the references first, 1 or 2 to allocate them last
+     * @param emptySlotsInSupers the value of the -XX:UseEmptySlotsInSupers flag, used from JDK 15
+     */
+    HotSpotFieldLayout(int headerSize,
+                       int referenceSize,
+                       int objectAlignment,
+                       int javaVersion,
+                       boolean compactFields,
+                       int fieldsAllocationStyle,
+                       boolean emptySlotsInSupers) {
+        this.headerSize = headerSize;
+        this.referenceSize = referenceSize;
+        this.objectAlignment = objectAlignment;
+        this.legacy = javaVersion < 15;
+        this.compactFields = compactFields;
+        this.referencesFirst = fieldsAllocationStyle == 0;
+        this.emptySlotsInSupers = emptySlotsInSupers;
+    }
+
+    /**
+     * @return the feature version of the running JVM, e.g. 8 for 1.8 or 17
+     */
+    static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        if (version.startsWith("1."))
+            version = version.substring(2);
+        int dot = version.indexOf('.');
+        return Integer.parseInt(dot < 0 ? version : version.substring(0, dot));
+    }
+
+    /**
+     * @return the size of the instances of the specified class
+     */
+    long sizeOfInstance(Class<?> type) {
+        long end;
+        if (legacy) {
+            end = legacyFieldsEnd(type);
+        } else {
+            end = headerSize;
+            for (Block block : fieldBlocks(type))
+                end = Math.max(end, block.offset + block.size);
+        }
+        return roundTo(end, objectAlignment);
+    }
+
+    /**
+     * Lays out the fields declared by the specified class and its superclasses the way HotSpot does up to JDK 14.
+     *
+     * @return the offset following the last field of the class
+     */
+    private long legacyFieldsEnd(Class<?> type) {
+        Class<?> superclass = type.getSuperclass();
+        if (superclass == null)
+            return headerSize;
+        long start = headerSize + roundTo(legacyFieldsEnd(superclass) - headerSize, referenceSize);
+
+        int longs = 0, ints = 0, shorts = 0, bytes = 0, references = 0;
+        for (Field field : type.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()))
+                continue;
+            int size = field.getType().isPrimitive() ? MemoryLayoutSpecification.sizeOfField(field.getType()) : 0;
+            switch (size) {
+                case 8: longs++; break;
+                case 4: ints++; break;
+                case 2: shorts++; break;
+                case 1: bytes++; break;
+                default: references++;
+            }
+        }
+
+        boolean hardCoded = type.getClassLoader() == null && HARD_CODED_OFFSETS.contains(type.getName());
+        boolean referencesFirst = this.referencesFirst || hardCoded;
+        boolean compact = compactFields && !hardCoded;
+
+        long offset = start;
+        if (referencesFirst)
+            offset += references * referenceSize;
+
+        if (longs > 0) {
+            long aligned = roundTo(offset, 8);
+            if (compact && aligned != offset) {
+                // fill the gap before the first long with smaller fields
+                long length = aligned - offset;
+                if (ints > 0) {
+                    ints--;
+                    length -= 4;
+                }
+                while (length >= 2 && shorts > 0) {
+                    shorts--;
+                    length -= 2;
+                }
+                while (length > 0 && bytes > 0) {
+                    bytes--;
+                    length--;
+                }
+                if (length >= referenceSize && references > 0 && !referencesFirst)
+                    references--;
+            }
+            offset = aligned;
+        }
+
+        offset += longs * 8 + ints * 4 + shorts * 2 + bytes;
+        if (!referencesFirst && references > 0)
+            offset = roundTo(offset, referenceSize) + references * referenceSize;
+        return offset;
+    }
+
+    /**
+     * Lays out the fields declared by the specified class and its superclasses the way HotSpot does from JDK 15.
+     *
+     * @return the blocks occupied by the fields, sorted by offset
+     */
+    private List<Block> fieldBlocks(Class<?> type) {
+        Class<?> superclass = type.getSuperclass();
+        if (superclass == null)
+            return new ArrayList<Block>();
+        List<Block> inherited = fieldBlocks(superclass);
+
+        List<Block> primitives = new ArrayList<Block>();
+        List<Block> references = new ArrayList<Block>();
+        for (Field field : type.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()))
+                continue;
+            if (field.getType().isPrimitive())
+                primitives.add(new Block(true, MemoryLayoutSpecification.sizeOfField(field.getType())));
+            else
+                references.add(new Block(true, referenceSize));
+        }
+        if (primitives.isEmpty() && references.isEmpty())
+            return inherited;
+
+        // the header and the inherited fields, separated by empty blocks and followed by an unbounded empty block
+        List<Block> layout = new ArrayList<Block>();
+        layout.add(new Block(true, 0, headerSize));
+        for (Block block : inherited) {
+            Block last = layout.get(layout.size() - 1);
+            if (block.offset > last.offset + last.size)
+                layout.add(new Block(false, last.offset + last.size, block.offset - last.offset - last.size));
+            layout.add(block);
+        }
+        Block last = layout.get(layout.size() - 1);
+        Block start;
+        if (emptySlotsInSupers || inherited.isEmpty()) {
+            layout.add(new Block(false, last.offset + last.size, Integer.MAX_VALUE));
+            start = layout.get(0);
+        } else {
+            // the fields are appended after the inherited ones, from the size of a reference
+            start = new Block(false, (int) roundTo(last.offset + last.size, referenceSize), Integer.MAX_VALUE);
+            layout.add(start);
+        }
+        Collections.sort(primitives, DECREASING_SIZE);
+        add(layout, primitives, start);
+        add(layout, references, start);
+
+        List<Block> fields = new ArrayList<Block>(inherited);
+        fields.addAll(primitives);
+        fields.addAll(references);
+        Collections.sort(fields, OFFSET);
+        return fields;
+    }
+
+    /**
+     * Allocates each field in the smallest empty block it fits in after the start block, the last one in case of tie,
+     * or else in the last block.
+     */
+    private static void add(List<Block> layout, List<Block> fields, Block start) {
+        boolean lastSearchSucceeded = false;
+        int lastSize = 0;
+        for (Block field : fields) {
+            Block last = layout.get(layout.size() - 1);
+            Block candidate = null;
+            if (start == last || (field.size == lastSize && !lastSearchSucceeded)) {
+                // a search for the same size has already failed
+                candidate = last;
+            } else {
+                lastSize = field.size;
+                lastSearchSucceeded = true;
+                for (int i = layout.size() - 2; layout.get(i) != start; i--) {
+                    Block block = layout.get(i);
+                    if (!block.used && block.fits(field.size) && (candidate == null || block.size < candidate.size))
+                        candidate = block;
+                }
+                if (candidate == null) {
+                    candidate = last;
+                    lastSearchSucceeded = false;
+                }
+            }
+            insert(layout, candidate, field);
+        }
+    }
+
+    /**
+     * Allocates the field at the beginning of the empty slot, after an empty block for the alignment if needed.
+     */
+    private static void insert(List<Block> layout, Block slot, Block field) {
+        int index = layout.indexOf(slot);
+        int misalignment = slot.offset % field.size;
+        if (misalignment != 0) {
+            int adjustment = field.size - misalignment;
+            layout.add(index++, new Block(false, slot.offset, adjustment));
+            slot.offset += adjustment;
+            slot.size -= adjustment;
+        }
+        field.offset = slot.offset;
+        layout.add(index, field);
+        slot.offset += field.size;
+        slot.size -= field.size;
+        if (slot.size == 0)
+            layout.remove(slot);
+    }
+
+    private static long roundTo(long x, int multiple) {
+        return ((x + multiple - 1) / multiple) * multiple;
+    }
+
+    /**
+     * A range of bytes of the layout, either used by the header or a field, or empty. The alignment of a field is its
+     * size.
+     */
+    private static final class Block {
+
+        private final boolean used;
+
+        private int offset;
+
+        private int size;
+
+        private Block(boolean used, int size) {
+            this(used, 0, size);
+        }
+
+        private Block(boolean used, int offset, int size) {
+            this.used = used;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        private boolean fits(int fieldSize) {
+            int misalignment = offset % fieldSize;
+            return size >= fieldSize + (misalignment == 0 ? 0 : fieldSize - misalignment);
+        }
+    }
+}
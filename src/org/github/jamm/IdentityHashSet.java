@@ -0,0 +1,211 @@
+package org.github.jamm;
+
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * A <code>Set</code> comparing its elements by identity, designed to track the objects visited by
+ * <code>MemoryMeter</code>.
+ * <p>
+ * The elements are stored directly in a single open-addressing table (linear probing), without any per-element entry
+ * or value slot, and <code>add</code> finds out whether the element is absent and inserts it with a single probe
+ * sequence. Elements cannot be removed.
+ */
+public final class IdentityHashSet<T> extends AbstractSet<T> {
+
+    public static final int DEFAULT_EXPECTED_SIZE = 32;
+
+    public static final float DEFAULT_LOAD_FACTOR = 0.5f;
+
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    private final float loadFactor;
+
+    private Object[] table;
+
+    private int size;
+
+    /**
+     * The number of elements above which the table is grown.
+     */
+    private int threshold;
+
+    private int modCount;
+
+    public IdentityHashSet() {
+        this(DEFAULT_EXPECTED_SIZE, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * @param expectedSize the number of elements the set is expected to hold; the set will not need to grow as long as
+     * it does not hold more elements
+     * @param loadFactor the maximum ratio between the number of elements and the table capacity, in (0, 1). Lower
+     * values make probing faster but the table larger.
+     */
+    public IdentityHashSet(int expectedSize, float loadFactor) {
+        if (expectedSize < 0)
+            throw new IllegalArgumentException(String.format("the expected size must not be negative (was %s).", expectedSize));
+        if (!(loadFactor > 0 && loadFactor < 1))
+            throw new IllegalArgumentException(String.format("the load factor must be in (0, 1) (was %s).", loadFactor));
+
+        this.loadFactor = loadFactor;
+        int capacity = 2;
+        while (capacity < MAXIMUM_CAPACITY && capacity * loadFactor < expectedSize)
+            capacity <<= 1;
+        table = new Object[capacity];
+        threshold = thresholdFor(capacity);
+    }
+
+    public static <T> Set<T> create() {
+        return new IdentityHashSet<T>();
+    }
+
+    public static <T> Callable<Set<T>> provider() {
+        return provider(DEFAULT_EXPECTED_SIZE, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * @param expectedSize the number of objects a measurement is expected to visit
+     * @param loadFactor the load factor of the sets
+     * @return a tracker provider creating <code>IdentityHashSet</code>s with the specified settings
+     */
+    public static <T> Callable<Set<T>> provider(final int expectedSize, final float loadFactor) {
+        return new Callable<Set<T>>() {
+            public Set<T> call() throws Exception {
+                return new IdentityHashSet<T>(expectedSize, loadFactor);
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null)
+            return false;
+
+        Object[] tab = table;
+        int mask = tab.length - 1;
+        for (int i = indexFor(o, mask); tab[i] != null; i = (i + 1) & mask) {
+            if (tab[i] == o)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the specified element if it is not already present.
+     *
+     * @param o the element to add
+     * @return <code>true</code> if the element was absent and has been added, <code>false</code> otherwise
+     * @throws NullPointerException if the element is null
+     */
+    @Override
+    public boolean add(T o) {
+        if (o == null)
+            throw new NullPointerException();
+
+        Object[] tab = table;
+        int mask = tab.length - 1;
+        int i = indexFor(o, mask);
+        for (Object e = tab[i]; e != null; e = tab[i]) {
+            if (e == o)
+                return false;
+            i = (i + 1) & mask;
+        }
+        tab[i] = o;
+        modCount++;
+        if (++size > threshold)
+            grow();
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = null;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+
+            private final Object[] tab = table;
+
+            private final int expectedModCount = modCount;
+
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < tab.length && tab[from] == null)
+                    from++;
+                return from;
+            }
+
+            public boolean hasNext() {
+                return next < tab.length;
+            }
+
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (modCount != expectedModCount)
+                    throw new ConcurrentModificationException();
+                if (next >= tab.length)
+                    throw new NoSuchElementException();
+                Object e = tab[next];
+                next = advance(next + 1);
+                return (T) e;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void grow() {
+        Object[] oldTable = table;
+        if (oldTable.length == MAXIMUM_CAPACITY) {
+            // at least one slot must remain empty for the probe sequences to terminate
+            if (size >= MAXIMUM_CAPACITY - 1)
+                throw new IllegalStateException("IdentityHashSet capacity exhausted.");
+            threshold = MAXIMUM_CAPACITY - 2;
+            return;
+        }
+
+        int capacity = oldTable.length << 1;
+        Object[] newTable = new Object[capacity];
+        int mask = capacity - 1;
+        for (Object e : oldTable) {
+            if (e == null)
+                continue;
+            int i = indexFor(e, mask);
+            while (newTable[i] != null)
+                i = (i + 1) & mask;
+            newTable[i] = e;
+        }
+        table = newTable;
+        threshold = thresholdFor(capacity);
+    }
+
+    private int thresholdFor(int capacity) {
+        return Math.min((int) (capacity * loadFactor), capacity - 1);
+    }
+
+    /**
+     * Spreads the identity hash code of the object over the table, identity hash codes being clustered on some JVMs.
+     */
+    private static int indexFor(Object o, int mask) {
+        int h = System.identityHashCode(o) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
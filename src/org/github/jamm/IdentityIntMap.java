@@ -0,0 +1,134 @@
+package org.github.jamm;
+
+/**
+ * A map from objects, compared by identity, to <code>int</code> values, without any per-entry object.
+ * <p>
+ * Like <code>IdentityHashSet</code>, the keys are stored in a single open-addressing table (linear probing), and the
+ * values in a parallel <code>int</code> array. The removed entries are not marked as deleted: the entries following
+ * them in their probe sequence are shifted back, so that the lookups never go through stale slots.
+ */
+final class IdentityIntMap {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    /**
+     * The value returned by <code>get</code> for the absent keys.
+     */
+    private final int missingValue;
+
+    private Object[] keys;
+
+    private int[] values;
+
+    private int size;
+
+    IdentityIntMap(int missingValue) {
+        this.missingValue = missingValue;
+        this.keys = new Object[64];
+        this.values = new int[64];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the value associated to the specified key, or the missing value if there is none
+     */
+    int get(Object key) {
+        Object[] tab = keys;
+        int mask = tab.length - 1;
+        for (int i = indexFor(key, mask); tab[i] != null; i = (i + 1) & mask) {
+            if (tab[i] == key)
+                return values[i];
+        }
+        return missingValue;
+    }
+
+    /**
+     * Associates the specified value to the specified key, replacing any previous value.
+     *
+     * @throws NullPointerException if the key is null
+     */
+    void put(Object key, int value) {
+        if (key == null)
+            throw new NullPointerException();
+
+        Object[] tab = keys;
+        int mask = tab.length - 1;
+        int i = indexFor(key, mask);
+        for (Object e = tab[i]; e != null; e = tab[i]) {
+            if (e == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        tab[i] = key;
+        values[i] = value;
+        if (++size > tab.length * LOAD_FACTOR)
+            grow();
+    }
+
+    /**
+     * Removes the entry of the specified key, if any.
+     *
+     * @return the value that was associated to the key, or the missing value if there was none
+     */
+    int remove(Object key) {
+        Object[] tab = keys;
+        int mask = tab.length - 1;
+        int i = indexFor(key, mask);
+        for (Object e = tab[i]; e != key; e = tab[i]) {
+            if (e == null)
+                return missingValue;
+            i = (i + 1) & mask;
+        }
+        int value = values[i];
+        size--;
+
+        // shifts back the following entries of the cluster which cannot be reached anymore from their home slot
+        int hole = i;
+        for (int j = (i + 1) & mask; tab[j] != null; j = (j + 1) & mask) {
+            int home = indexFor(tab[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                tab[hole] = tab[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        tab[hole] = null;
+        return value;
+    }
+
+    private void grow() {
+        Object[] oldKeys = keys;
+        int[] oldValues = values;
+        if (oldKeys.length == MAXIMUM_CAPACITY)
+            throw new IllegalStateException("IdentityIntMap capacity exhausted.");
+
+        int capacity = oldKeys.length << 1;
+        Object[] newKeys = new Object[capacity];
+        int[] newValues = new int[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            Object e = oldKeys[j];
+            if (e == null)
+                continue;
+            int i = indexFor(e, mask);
+            while (newKeys[i] != null)
+                i = (i + 1) & mask;
+            newKeys[i] = e;
+            newValues[i] = oldValues[j];
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+
+    private static int indexFor(Object o, int mask) {
+        int h = System.identityHashCode(o) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
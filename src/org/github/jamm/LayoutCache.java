@@ -0,0 +1,493 @@
+package org.github.jamm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.net.URL;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.CodeSource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An on-disk cache of the class layouts computed by a <code>MemoryMeter</code>: the shallow size of the instances of
+ * each class, and the names, types and <code>sun.misc.Unsafe</code> offsets of its reference fields, so that a new
+ * process does not have to walk the fields of the classes through reflection again before it can measure and crawl
+ * their instances.
+ * <p>
+ * The cache file is memory-mapped when the cache is opened, which only indexes its entries: an entry is only read and
+ * validated when its class is measured or crawled for the first time. An entry is only used if every class of the
+ * hierarchy of its class was loaded from the same class file (a directory entry, or a jar file) with the same length
+ * and modification time as when it was recorded, which does not depend on the class loader. The classes of the JDK
+ * are only checked by name, as the whole file is ignored if it was written by another JVM, another JDK or with other
+ * JVM options, or if the layout of the arrays given by <code>sun.misc.Unsafe</code> differs.
+ * The classes loaded from elsewhere (e.g. generated classes) are never cached. The cache file is only written by
+ * <code>save()</code>.
+ * <p>
+ * A cache can be shared by several meters and is thread-safe.
+ */
+public final class LayoutCache {
+
+    private static final int MAGIC = 0x4A414D43; // "JAMC"
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The value of the fingerprint of the classes that cannot be cached.
+     */
+    private static final long UNCACHEABLE = 0;
+
+    private final File file;
+
+    /**
+     * The description of the running JVM, which must match the one of the cache file.
+     */
+    private final String jvm;
+
+    /**
+     * The content of the cache file, or <code>null</code> if there was no valid cache file.
+     */
+    private final ByteBuffer mapped;
+
+    /**
+     * The position in the cache file of the length of each entry, by key.
+     */
+    private final Map<String, Integer> positions;
+
+    /**
+     * The entries read from the cache file or recorded since it was opened, by key.
+     */
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * The fingerprint of each jar file the classes have been loaded from, by location.
+     */
+    private final ConcurrentMap<String, Long> jars = new ConcurrentHashMap<String, Long>();
+
+    private LayoutCache(File file, String jvm, ByteBuffer mapped, Map<String, Integer> positions) {
+        this.file = file;
+        this.jvm = jvm;
+        this.mapped = mapped;
+        this.positions = positions;
+    }
+
+    /**
+     * Opens the specified cache file. The file does not have to exist, and its content is ignored if it is not a valid
+     * cache file for the running JVM.
+     *
+     * @param file the cache file
+     * @return the cache
+     * @throws IOException if the cache file exists but cannot be read
+     */
+    public static LayoutCache open(File file) throws IOException {
+        String jvm = describeJvm();
+        if (!file.exists())
+            return new LayoutCache(file, jvm, null, new HashMap<String, Integer>());
+
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            Map<String, Integer> positions = readPositions(mapped, jvm);
+            return positions == null ? new LayoutCache(file, jvm, null, new HashMap<String, Integer>())
+                                     : new LayoutCache(file, jvm, mapped, positions);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the key of each entry of the cache file.
+     *
+     * @return the position of the length of each entry, or <code>null</code> if the content is not a valid cache file
+     * for the running JVM
+     */
+    private static Map<String, Integer> readPositions(ByteBuffer buffer, String jvm) {
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION || !jvm.equals(getString(buffer)))
+                return null;
+            int count = buffer.getInt();
+            Map<String, Integer> positions = new HashMap<String, Integer>();
+            for (int i = 0; i < count; i++) {
+                String key = getString(buffer);
+                positions.put(key, buffer.position());
+                int length = buffer.getInt();
+                buffer.position(buffer.position() + length);
+            }
+            return positions;
+        } catch (BufferUnderflowException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Describes the running JVM: the layout of the objects depends on the JVM, its version and its options, and on the
+     * JDK whose classes are only checked by name. The offsets given by <code>sun.misc.Unsafe</code> also catch the
+     * options enabled by default (e.g. the compressed references), without reading the JVM flags.
+     */
+    private static String describeJvm() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(System.getProperty("java.vm.name")).append(' ')
+               .append(System.getProperty("java.vm.version")).append(' ')
+               .append(System.getProperty("java.home"));
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith("-XX:"))
+                builder.append(' ').append(arg);
+        }
+        if (UnsafeAccess.hasUnsafe()) {
+            builder.append(' ').append(UnsafeAccess.unsafe.arrayBaseOffset(Object[].class))
+                   .append(' ').append(UnsafeAccess.unsafe.arrayIndexScale(Object[].class))
+                   .append(' ').append(UnsafeAccess.unsafe.arrayBaseOffset(long[].class));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the cached size of the instances of the specified class.
+     *
+     * @param type the class
+     * @param strategy the strategy the size must have been computed with
+     * @return the size of the instances of the class, or -1 if it is not cached
+     */
+    long instanceSize(Class<?> type, MemoryMeter.Strategy strategy) {
+        Entry entry = entry(type, "S " + strategy.name() + ' ');
+        return entry == null ? -1 : ((SizeEntry) entry).size;
+    }
+
+    /**
+     * Records the size of the instances of the specified class.
+     *
+     * @param type the class
+     * @param strategy the strategy the size was computed with
+     * @param size the size of the instances of the class
+     */
+    void recordInstanceSize(Class<?> type, MemoryMeter.Strategy strategy, long size) {
+        long fingerprint = fingerprintOf(type);
+        if (fingerprint != UNCACHEABLE)
+            entries.put("S " + strategy.name() + ' ' + type.getName(), new SizeEntry(fingerprint, size));
+    }
+
+    /**
+     * Returns the cached reference fields of the specified class.
+     *
+     * @param type the class
+     * @param filters the settings of the meter the fields have been filtered with
+     * @return the reference fields of the class, or <code>null</code> if they are not cached
+     */
+    CachedFields referenceFields(Class<?> type, String filters) {
+        return (CachedFields) entry(type, "F " + filters + ' ');
+    }
+
+    /**
+     * Records the reference fields of the specified class.
+     *
+     * @param type the class
+     * @param filters the settings of the meter the fields have been filtered with
+     * @param fields the reference fields of the class and of its superclasses, the class first
+     * @param offsets the <code>sun.misc.Unsafe</code> offsets of the fields
+     */
+    void recordReferenceFields(Class<?> type, String filters, Field[] fields, long[] offsets) {
+        long fingerprint = fingerprintOf(type);
+        if (fingerprint == UNCACHEABLE)
+            return;
+
+        String[] names = new String[fields.length];
+        String[] typeNames = new String[fields.length];
+        int[] depths = new int[fields.length];
+        int depth = 0;
+        Class<?> cls = type;
+        for (int i = 0; i < fields.length; i++) {
+            for (; cls != fields[i].getDeclaringClass(); cls = cls.getSuperclass())
+                depth++;
+            names[i] = fields[i].getName();
+            typeNames[i] = fields[i].getType().getName();
+            depths[i] = depth;
+        }
+        entries.put("F " + filters + ' ' + type.getName(), new CachedFields(fingerprint, names, typeNames, depths, offsets));
+    }
+
+    /**
+     * @return the valid entry of the specified class, or <code>null</code> if there is none
+     */
+    private Entry entry(Class<?> type, String prefix) {
+        String key = prefix + type.getName();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            Integer position = positions.get(key);
+            if (position == null)
+                return null;
+            entry = readEntry(key, position);
+            if (entry == null)
+                return null;
+            Entry previous = entries.putIfAbsent(key, entry);
+            if (previous != null)
+                entry = previous;
+        }
+        return entry.fingerprint == fingerprintOf(type) ? entry : null;
+    }
+
+    /**
+     * Reads the specified entry of the cache file.
+     *
+     * @return the entry, or <code>null</code> if it is corrupted
+     */
+    private Entry readEntry(String key, int position) {
+        // a duplicate is read so that the entries can be read concurrently
+        ByteBuffer buffer = mapped.duplicate();
+        try {
+            buffer.position(position + 4);
+            long fingerprint = buffer.getLong();
+            if (key.startsWith("S "))
+                return new SizeEntry(fingerprint, buffer.getLong());
+
+            int count = buffer.getInt();
+            String[] names = new String[count];
+            String[] typeNames = new String[count];
+            int[] depths = new int[count];
+            long[] offsets = new long[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = getString(buffer);
+                typeNames[i] = getString(buffer);
+                depths[i] = buffer.getInt();
+                offsets[i] = buffer.getLong();
+            }
+            return new CachedFields(fingerprint, names, typeNames, depths, offsets);
+        } catch (BufferUnderflowException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the cached layouts to the cache file: the ones recorded since the cache was opened, and the ones of the
+     * cache file that have not been replaced. The file is written to a temporary file first, which then replaces it.
+     *
+     * @throws IOException if the cache file cannot be written
+     */
+    public void save() throws IOException {
+        Map<String, byte[]> saved = new HashMap<String, byte[]>();
+        for (Map.Entry<String, Integer> position : positions.entrySet()) {
+            ByteBuffer buffer = mapped.duplicate();
+            buffer.position(position.getValue());
+            byte[] body = new byte[buffer.getInt()];
+            buffer.get(body);
+            saved.put(position.getKey(), body);
+        }
+        for (Map.Entry<String, Entry> entry : entries.entrySet())
+            saved.put(entry.getKey(), entry.getValue().toBytes());
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            putString(out, jvm);
+            out.writeInt(saved.size());
+            for (Map.Entry<String, byte[]> entry : saved.entrySet()) {
+                putString(out, entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+            throw new IOException(String.format("The cache file could not be replaced (was %s).", file));
+    }
+
+    /**
+     * Returns a fingerprint of the class files of the specified class and of its superclasses: the length and the
+     * modification time of the class file or of the jar file each class was loaded from, or only the name of the
+     * class for the classes of the JDK.
+     *
+     * @return the fingerprint, or <code>UNCACHEABLE</code> if one of the classes was not loaded from a file
+     */
+    private long fingerprintOf(Class<?> type) {
+        // the names of the hidden classes (e.g. lambdas) change from one process to the other, and the size of a Class
+        // object depends on its static fields
+        if (type == Class.class || type.getName().indexOf('/') >= 0)
+            return UNCACHEABLE;
+
+        long hash = 0xCBF29CE484222325L;
+        for (Class<?> cls = type; cls != null; cls = cls.getSuperclass()) {
+            long classHash = classFileHash(cls);
+            if (classHash == UNCACHEABLE)
+                return UNCACHEABLE;
+            hash = (hash ^ cls.getName().hashCode()) * 0x100000001B3L;
+            hash = (hash ^ classHash) * 0x100000001B3L;
+        }
+        return hash == UNCACHEABLE ? 1 : hash;
+    }
+
+    private long classFileHash(Class<?> cls) {
+        if (cls.getClassLoader() == null)
+            return 1;
+
+        URL location;
+        try {
+            CodeSource source = cls.getProtectionDomain().getCodeSource();
+            location = source == null ? null : source.getLocation();
+        } catch (SecurityException e) {
+            return UNCACHEABLE;
+        }
+        if (location == null)
+            return UNCACHEABLE;
+        // the classes of the JDK modules outside of the boot layer
+        if ("jrt".equals(location.getProtocol()))
+            return 1;
+        if (!"file".equals(location.getProtocol()))
+            return UNCACHEABLE;
+
+        String path = location.toString();
+        if (path.endsWith("/"))
+            return fileHash(new File(toFile(location), cls.getName().replace('.', '/') + ".class"));
+
+        Long hash = jars.get(path);
+        if (hash == null) {
+            hash = fileHash(toFile(location));
+            jars.put(path, hash);
+        }
+        return hash;
+    }
+
+    private static File toFile(URL location) {
+        try {
+            return new File(new URI(location.toString()));
+        } catch (Exception e) {
+            // e.g. a location with spaces that was not escaped
+            return new File(location.getPath());
+        }
+    }
+
+    private static long fileHash(File file) {
+        long length = file.length();
+        if (length == 0)
+            return UNCACHEABLE;
+        return length * 0x9E3779B97F4A7C15L ^ file.lastModified();
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void putString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private abstract static class Entry {
+
+        final long fingerprint;
+
+        Entry(long fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        /**
+         * @return the content of the entry in the cache file
+         */
+        abstract byte[] toBytes() throws IOException;
+    }
+
+    private static final class SizeEntry extends Entry {
+
+        private final long size;
+
+        private SizeEntry(long fingerprint, long size) {
+            super(fingerprint);
+            this.size = size;
+        }
+
+        @Override
+        byte[] toBytes() {
+            return ByteBuffer.allocate(16).putLong(fingerprint).putLong(size).array();
+        }
+    }
+
+    /**
+     * The reference fields of a class, before they are filtered by type: the types of the fields are only loaded
+     * when the entry is used, to check whether the meter ignores them.
+     */
+    static final class CachedFields extends Entry {
+
+        private final String[] names;
+
+        private final String[] typeNames;
+
+        /**
+         * The number of superclasses between the class and the class declaring each field.
+         */
+        private final int[] depths;
+
+        private final long[] offsets;
+
+        private CachedFields(long fingerprint, String[] names, String[] typeNames, int[] depths, long[] offsets) {
+            super(fingerprint);
+            this.names = names;
+            this.typeNames = typeNames;
+            this.depths = depths;
+            this.offsets = offsets;
+        }
+
+        int size() {
+            return names.length;
+        }
+
+        String name(int index) {
+            return names[index];
+        }
+
+        long offset(int index) {
+            return offsets[index];
+        }
+
+        /**
+         * Loads the type of the specified field, through the class loader of the class declaring it.
+         *
+         * @param type the class the fields belong to
+         * @throws ClassNotFoundException if the type cannot be loaded anymore
+         */
+        Class<?> type(Class<?> type, int index) throws ClassNotFoundException {
+            Class<?> cls = type;
+            for (int depth = 0; depth < depths[index]; depth++)
+                cls = cls.getSuperclass();
+            return Class.forName(typeNames[index], false, cls.getClassLoader());
+        }
+
+        @Override
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(fingerprint);
+            out.writeInt(names.length);
+            for (int i = 0; i < names.length; i++) {
+                putString(out, names[i]);
+                putString(out, typeNames[i]);
+                out.writeInt(depths[i]);
+                out.writeLong(offsets[i]);
+            }
+            out.close();
+            return bytes.toByteArray();
+        }
+    }
+}
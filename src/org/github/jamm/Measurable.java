@@ -0,0 +1,30 @@
+package org.github.jamm;
+
+/**
+ * An object that reports its own shallow size and children to <code>MemoryMeter</code>, instead of being measured and
+ * crawled through reflection.
+ * <p>
+ * It is meant for the classes that know their layout better than reflection does, for example because they hold
+ * off-heap memory or because only some of their references should be followed. The meter trusts the implementation:
+ * the objects pushed are not filtered by the <code>@Unmetered</code> annotation nor by the settings of the meter.
+ */
+public interface Measurable {
+
+    /**
+     * Returns the shallow size of this object. It is called instead of measuring the object, and unlike the size of
+     * the other instances it is not cached per class, so it may vary from one instance to the other.
+     * <code>MemoryLayoutSpecification.sizeOfInstance(getClass())</code> gives the size an instance would be measured
+     * with.
+     *
+     * @return the number of bytes to account for this object, excluding its children
+     */
+    long shallowSize();
+
+    /**
+     * Pushes onto the stack the children of this object that must be measured, with
+     * <code>MeasurementStack.push</code>. The children already visited by the measurement are skipped by the stack.
+     *
+     * @param stack the stack of the objects left to crawl
+     */
+    void addChildrenTo(MeasurementStack stack);
+}
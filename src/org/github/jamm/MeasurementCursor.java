@@ -0,0 +1,139 @@
+package org.github.jamm;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A deep measurement that can be performed in several steps, obtained from <code>MemoryMeter.cursor</code>.
+ * <p>
+ * The cursor holds the state of the traversal (the objects left to crawl and the tracker of the objects already
+ * visited) between the calls to <code>advance</code> and <code>advanceFor</code>, so that the measurement of a large
+ * graph can be split in short slices, for example tasks of a shared executor, rather than holding a thread until it is
+ * complete. Once complete, <code>bytes()</code> is the value <code>measureDeep</code> would have returned.
+ * <p>
+ * The graph is not frozen between two steps: an object is measured in the state it has when it is crawled, and the
+ * objects made reachable from already crawled objects after they were crawled are missed.
+ * <p>
+ * A cursor is not thread-safe, but it can be advanced by different threads as long as the steps do not overlap and
+ * are ordered, as tasks submitted one after the other to an executor are.
+ */
+public final class MeasurementCursor {
+
+    /**
+     * The number of objects measured by advanceFor between two checks of the clock.
+     */
+    private static final int CLOCK_CHECK_INTERVAL = 256;
+
+    private final MemoryMeter meter;
+
+    private final Deque<Object> stack = new ArrayDeque<Object>();
+
+    private final Set<Object> tracker;
+
+    private final MemoryMeterListener listener;
+
+    private long bytes;
+
+    private long objects;
+
+    /**
+     * @param root the root of the graph to measure, or null if there is nothing to measure
+     */
+    MeasurementCursor(MemoryMeter meter, Object root, Set<Object> tracker, MemoryMeterListener listener) {
+        this.meter = meter;
+        this.tracker = tracker;
+        this.listener = listener;
+
+        if (root == null)
+            return;
+
+        tracker.add(root);
+        listener.started(root);
+        stack.push(root);
+    }
+
+    /**
+     * Measures at most the specified number of objects.
+     *
+     * @param maxObjects the maximum number of objects to measure
+     * @return <code>true</code> if the measurement is complete
+     * @throws IllegalArgumentException if maxObjects is negative
+     */
+    public boolean advance(long maxObjects) {
+        if (maxObjects < 0)
+            throw new IllegalArgumentException(String.format("The number of objects must not be negative (was %d).", maxObjects));
+
+        for (long i = 0; i < maxObjects && !stack.isEmpty(); i++)
+            step();
+        return isComplete();
+    }
+
+    /**
+     * Measures objects until the measurement is complete or the specified time has elapsed. The clock is only read every
+     * few hundred objects, so the step may last slightly longer than the specified time.
+     *
+     * @param time the maximum duration of the step
+     * @param unit the unit of the duration
+     * @return <code>true</code> if the measurement is complete
+     * @throws NullPointerException if unit is null
+     * @throws IllegalArgumentException if time is negative
+     */
+    public boolean advanceFor(long time, TimeUnit unit) {
+        if (time < 0)
+            throw new IllegalArgumentException(String.format("The time must not be negative (was %d %s).", time, unit));
+
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        while (!stack.isEmpty()) {
+            step();
+            if (objects % CLOCK_CHECK_INTERVAL == 0 && System.nanoTime() - deadline > 0)
+                break;
+        }
+        return isComplete();
+    }
+
+    /**
+     * Measures the next object. The caller must check that the measurement is not complete.
+     */
+    void step() {
+        bytes += meter.measureAndAddChildren(stack.pop(), stack, tracker, listener);
+        objects++;
+        if (stack.isEmpty())
+            listener.done(bytes);
+    }
+
+    /**
+     * Stops the measurement if it is not complete, notifying the listener of the size measured so far.
+     */
+    void stop() {
+        if (!isComplete())
+            listener.done(bytes);
+    }
+
+    /**
+     * @return <code>true</code> if all the objects reachable from the root have been measured
+     */
+    public boolean isComplete() {
+        return stack.isEmpty();
+    }
+
+    /**
+     * @return the memory usage of the objects measured so far, which is a lower bound until the measurement is complete
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of objects measured so far
+     */
+    public long objects() {
+        return objects;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MeasurementCursor[bytes=%s%d, objects=%d]", isComplete() ? "" : ">=", bytes, objects);
+    }
+}
@@ -0,0 +1,40 @@
+package org.github.jamm;
+
+import java.util.Deque;
+import java.util.Set;
+
+/**
+ * The stack of the objects left to crawl by a measurement, onto which a <code>Measurable</code> pushes its children.
+ * <p>
+ * A stack is only valid during the call to <code>Measurable.addChildrenTo</code> it is passed to.
+ */
+public final class MeasurementStack {
+
+    private final Object parent;
+
+    private final Deque<Object> stack;
+
+    private final Set<Object> tracker;
+
+    private final MemoryMeterListener listener;
+
+    MeasurementStack(Object parent, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+        this.parent = parent;
+        this.stack = stack;
+        this.tracker = tracker;
+        this.listener = listener;
+    }
+
+    /**
+     * Pushes the specified child onto the stack, unless it is null or has already been visited by the measurement.
+     *
+     * @param name the name under which the child is referenced, e.g. the name of the field holding it
+     * @param child the child
+     */
+    public void push(String name, Object child) {
+        if (child != null && tracker.add(child)) {
+            stack.push(child);
+            listener.fieldAdded(parent, name, child);
+        }
+    }
+}
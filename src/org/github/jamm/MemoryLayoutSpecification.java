@@ -4,32 +4,24 @@ import sun.misc.Unsafe;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryPoolMXBean;
-import java.lang.management.RuntimeMXBean;
-import java.lang.reflect.Array;
 import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
-import java.util.ArrayList;
-import java.util.List;
+import java.lang.reflect.Method;
 
 public abstract class MemoryLayoutSpecification
 {
 
-    static final Unsafe unsafe;
-    static
-    {
-        Unsafe tryGetUnsafe;
-        try {
-            Field field = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
-            field.setAccessible(true);
-            tryGetUnsafe = (sun.misc.Unsafe) field.get(null);
-        } catch (Exception e) {
-            tryGetUnsafe = null;
-        }
-        unsafe = tryGetUnsafe;
-    }
+    static final Unsafe unsafe = UnsafeAccess.unsafe;
 
     public static final MemoryLayoutSpecification SPEC = getEffectiveMemoryLayoutSpecification();
 
+    private static final HotSpotFieldLayout FIELD_LAYOUT = new HotSpotFieldLayout(SPEC.getObjectHeaderSize(),
+                                                                                  SPEC.getReferenceSize(),
+                                                                                  SPEC.getObjectPadding(),
+                                                                                  HotSpotFieldLayout.javaVersion(),
+                                                                                  booleanVmOption("CompactFields", true),
+                                                                                  intVmOption("FieldsAllocationStyle", 1),
+                                                                                  booleanVmOption("UseEmptySlotsInSupers", true));
+
     public abstract int getArrayHeaderSize();
 
     public abstract int getObjectHeaderSize();
@@ -42,7 +34,7 @@ public abstract class MemoryLayoutSpecification
 
     /* Indicates if UNSAFE object size determination is available */
     public static boolean hasUnsafe() {
-        return unsafe != null;
+        return UnsafeAccess.hasUnsafe();
     }
 
     /** @return sizeOfField(field.getType()) */
@@ -79,42 +71,28 @@ public abstract class MemoryLayoutSpecification
     }
 
     /**
-     * @return this allocated heap size of the instance provided; for arrays this is equivalent to sizeOf(obj),
-     * which uses the memory layout specification, however for objects this method uses
+     * @return this allocated heap size of the instance provided; for arrays the header and element sizes are
+     * given by sun.misc.Unsafe, however for objects this method uses the maximum field offset
      */
     public static long sizeOfWithUnsafe(Object obj) {
         Class<?> type = obj.getClass();
         if (type.isArray())
-            return sizeOfArray(obj, type);
+            return UnsafeAccess.sizeOfArray(unsafe.arrayBaseOffset(type), ShallowLayout.arrayLength(obj), unsafe.arrayIndexScale(type));
         return sizeOfInstanceWithUnsafe(type);
     }
 
-    // this is very close to accurate, but occasionally yields a slightly incorrect answer (when long fields are used
-    // and cannot be 8-byte aligned, an extra 4-bytes is allocated.
-    // sizeOfInstanceWithUnsafe is safe against this miscounting
+    // reproduces the field layout of HotSpot for the version of the running JVM, see HotSpotFieldLayout
     public static long sizeOfInstance(Class<?> type) {
-        long size = SPEC.getObjectHeaderSize() + sizeOfDeclaredFields(type);
-        while ((type = type.getSuperclass()) != Object.class && type != null)
-            size += roundTo(sizeOfDeclaredFields(type), SPEC.getSuperclassFieldPadding());
-        return roundTo(size, SPEC.getObjectPadding());
+        return FIELD_LAYOUT.sizeOfInstance(type);
     }
 
-    // attemps to use sun.misc.Unsafe to find the maximum object offset, this work around helps deal with long alignment
+    // uses sun.misc.Unsafe to find the maximum field offset, see UnsafeAccess.sizeOfInstance
     public static long sizeOfInstanceWithUnsafe(Class<?> type) {
-        while (type != null)
-        {
-            long size = 0;
-            for (Field f : declaredFieldsOf(type))
-                size = Math.max(size, unsafe.objectFieldOffset(f) + sizeOf(f));
-            if (size > 0)
-                return roundTo(size, SPEC.getObjectPadding());
-            type = type.getSuperclass();
-        }
-        return roundTo(SPEC.getObjectHeaderSize(), SPEC.getObjectPadding());
+        return UnsafeAccess.sizeOfInstance(type);
     }
 
     public static long sizeOfArray(Object instance, Class<?> type) {
-        return sizeOfArray(Array.getLength(instance), sizeOfField(type.getComponentType()));
+        return sizeOfArray(ShallowLayout.arrayLength(instance), sizeOfField(type.getComponentType()));
     }
 
     /**
@@ -137,23 +115,6 @@ public abstract class MemoryLayoutSpecification
         return roundTo(SPEC.getArrayHeaderSize() + length * elementSize, SPEC.getObjectPadding());
     }
 
-    private static long sizeOfDeclaredFields(Class<?> type) {
-        long size = 0;
-        for (Field f : declaredFieldsOf(type))
-            size += sizeOf(f);
-        return size;
-    }
-
-    private static Iterable<Field> declaredFieldsOf(Class<?> type) {
-        List<Field> fields = new ArrayList<Field>();
-        for (Field f : type.getDeclaredFields())
-        {
-            if (!Modifier.isStatic(f.getModifiers()))
-                fields.add(f);
-        }
-        return fields;
-    }
-
     private static long roundTo(long x, int multiple) {
         return ((x + multiple - 1) / multiple) * multiple;
     }
@@ -186,6 +147,10 @@ public abstract class MemoryLayoutSpecification
             };
         }
 
+        MemoryLayoutSpecification spec = getMemoryLayoutSpecificationFromVmOptions();
+        if (spec != null)
+            return spec;
+
         boolean modernJvm = true;
 
         final String strSpecVersion = System.getProperty("java.specification.version");
@@ -262,18 +227,142 @@ public abstract class MemoryLayoutSpecification
         };
     }
 
+    /**
+     * Derives the layout from the flags of the running HotSpot JVM.
+     *
+     * @return the layout, or <code>null</code> if the flags cannot be read (e.g. on another JVM)
+     */
+    private static MemoryLayoutSpecification getMemoryLayoutSpecificationFromVmOptions() {
+        String compressedOops = vmOption("UseCompressedOops");
+        if (compressedOops == null)
+            return null;
+
+        final int referenceSize = Boolean.parseBoolean(compressedOops) ? 4 : 8;
+        // UseCompressedClassPointers only exists since JDK 8, the class pointers were compressed along with the oops before
+        boolean compressedClassPointers = booleanVmOption("UseCompressedClassPointers", referenceSize == 4);
+        final int objectHeaderSize;
+        final int arrayHeaderSize;
+        if (booleanVmOption("UseCompactObjectHeaders", false)) {
+            // the class pointer is part of the 8 bytes mark word
+            objectHeaderSize = 8;
+            arrayHeaderSize = 12;
+        } else {
+            objectHeaderSize = 8 + (compressedClassPointers ? 4 : 8);
+            // the elements start on 8 bytes up to JDK 21, whatever their size
+            int lengthEnd = objectHeaderSize + 4;
+            arrayHeaderSize = HotSpotFieldLayout.javaVersion() < 22 ? (int) roundTo(lengthEnd, 8) : lengthEnd;
+        }
+        final int alignment = intVmOption("ObjectAlignmentInBytes", getAlignment());
+
+        return new MemoryLayoutSpecification() {
+
+            public int getArrayHeaderSize() {
+                return arrayHeaderSize;
+            }
+
+            public int getObjectHeaderSize() {
+                return objectHeaderSize;
+            }
+
+            public int getObjectPadding() {
+                return alignment;
+            }
+
+            public int getReferenceSize() {
+                return referenceSize;
+            }
+
+            public int getSuperclassFieldPadding() {
+                return referenceSize;
+            }
+        };
+    }
+
+    /**
+     * Reads a flag of the running JVM through the <code>HotSpotDiagnosticMXBean</code>, which is not part of the Java
+     * API and is then called through reflection.
+     *
+     * @return the value of the flag, or <code>null</code> if it does not exist or cannot be read
+     */
+    static String vmOption(String name) {
+        if (DiagnosticBean.GET_VM_OPTION == null)
+            return null;
+        try {
+            Object option = DiagnosticBean.GET_VM_OPTION.invoke(DiagnosticBean.BEAN, name);
+            return (String) DiagnosticBean.GET_VALUE.invoke(option);
+        } catch (Exception e) {
+            // e.g. an IllegalArgumentException wrapped in an InvocationTargetException if the flag does not exist
+            return null;
+        }
+    }
+
+    private static boolean booleanVmOption(String name, boolean defaultValue) {
+        String value = vmOption(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    private static int intVmOption(String name, int defaultValue) {
+        String value = vmOption(name);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     // check if we have a non-standard object alignment we need to round to
     private static int getAlignment() {
-        RuntimeMXBean runtimeMxBean = ManagementFactory.getRuntimeMXBean();
-        for (String arg : runtimeMxBean.getInputArguments()) {
-            if (arg.startsWith("-XX:ObjectAlignmentInBytes=")) {
+        return UnsafeAccess.objectAlignment();
+    }
+
+    /**
+     * The <code>HotSpotDiagnosticMXBean</code> of the running JVM, looked up once and only when a flag is first read.
+     * It is obtained with <code>ManagementFactory.getPlatformMXBean</code> from Java 7, which does not start the
+     * platform MBean server, and through a proxy to the platform MBean server on Java 6.
+     */
+    private static final class DiagnosticBean {
+
+        /**
+         * The bean, or <code>null</code> if it does not exist (e.g. on another JVM than HotSpot).
+         */
+        private static final Object BEAN;
+
+        /**
+         * <code>HotSpotDiagnosticMXBean.getVMOption</code>, or <code>null</code> if the bean does not exist.
+         */
+        private static final Method GET_VM_OPTION;
+
+        /**
+         * <code>VMOption.getValue</code>, or <code>null</code> if the bean does not exist.
+         */
+        private static final Method GET_VALUE;
+
+        static {
+            Object bean = null;
+            Method getVmOption = null;
+            Method getValue = null;
+            try {
+                Class<?> beanClass = Class.forName("com.sun.management.HotSpotDiagnosticMXBean");
                 try {
-                    return Integer.parseInt(arg.substring("-XX:ObjectAlignmentInBytes=".length()));
-                } catch (Exception e){}
+                    Method getPlatformMXBean = ManagementFactory.class.getMethod("getPlatformMXBean", Class.class);
+                    bean = getPlatformMXBean.invoke(null, beanClass);
+                } catch (NoSuchMethodException e) {
+                    bean = ManagementFactory.newPlatformMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                                                                    "com.sun.management:type=HotSpotDiagnostic",
+                                                                    beanClass);
+                }
+                if (bean != null) {
+                    getVmOption = beanClass.getMethod("getVMOption", String.class);
+                    getValue = Class.forName("com.sun.management.VMOption").getMethod("getValue");
+                }
+            } catch (Exception e) {
+                getVmOption = null;
+            } catch (LinkageError e) {
+                getVmOption = null;
             }
+            BEAN = bean;
+            GET_VM_OPTION = getVmOption;
+            GET_VALUE = getValue;
         }
-        return 8;
     }
-
-
 }
@@ -1,20 +1,41 @@
 package org.github.jamm;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.instrument.Instrumentation;
 import java.lang.ref.Reference;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
-import java.nio.ByteBuffer;
+import java.nio.Buffer;
+import java.nio.charset.Charset;
+import java.util.AbstractSet;
 import java.util.ArrayDeque;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Deque;
-import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class MemoryMeter {
 	
 	private static final String outerClassReference = "this\\$[0-9]+";
+
+    /**
+     * The number of objects measured by measureDeepUpTo between two checks of the deadline.
+     */
+    private static final int DEADLINE_CHECK_INTERVAL = 256;
 	
     private static Instrumentation instrumentation;
 
@@ -46,13 +67,90 @@ public class MemoryMeter {
         ALWAYS_UNSAFE
     }
 
+    /**
+     * How the shallow size of the objects is obtained, resolved from the Guess mode.
+     */
+    public static enum Strategy {
+        /* Measure the objects with java.lang.instrument.Instrumentation */
+        INSTRUMENTATION {
+            @Override
+            long sizeOfInstance(Object object, Class<?> type) {
+                return instrumentation.getObjectSize(object);
+            }
+
+            @Override
+            long sizeOfArray(Object array, ShallowLayout layout) {
+                return instrumentation.getObjectSize(array);
+            }
+        },
+        /* Guess the size of the objects from the field offsets and array base offsets given by sun.misc.Unsafe */
+        UNSAFE {
+            @Override
+            long sizeOfInstance(Object object, Class<?> type) {
+                return UnsafeAccess.sizeOfInstance(type);
+            }
+
+            @Override
+            long sizeOfArray(Object array, ShallowLayout layout) {
+                return UnsafeAccess.sizeOfArray(layout.arrayBaseOffset, ShallowLayout.arrayLength(array), layout.arrayElementSize);
+            }
+        },
+        /* Guess the size of the objects using predefined specifications */
+        SPEC {
+            @Override
+            long sizeOfInstance(Object object, Class<?> type) {
+                return MemoryLayoutSpecification.sizeOfInstance(type);
+            }
+        };
+
+        abstract long sizeOfInstance(Object object, Class<?> type);
+
+        long sizeOfArray(Object array, ShallowLayout layout) {
+            return MemoryLayoutSpecification.sizeOfArray(ShallowLayout.arrayLength(array), layout.arrayElementSize);
+        }
+    }
+
+    public static enum FieldAccess {
+        /* Read the reference fields of the crawled objects through reflection */
+        REFLECTION,
+        /* Read the reference fields of the crawled objects with sun.misc.Unsafe, error if it could not be obtained */
+        UNSAFE,
+        /* Read the reference fields of the crawled objects with sun.misc.Unsafe; if that is unavailable,
+         * read them through reflection.*/
+        BEST,
+        /* Read the reference fields of the crawled objects with code generated for each class, reading them at their
+         * sun.misc.Unsafe offsets (JDK 15 and later); if that is unavailable, read them as BEST does.*/
+        GENERATED
+    }
+
     private final Callable<Set<Object>> trackerProvider;
-    private final boolean includeFullBufferSize;
+    final boolean includeFullBufferSize;
     private final Guess guess;
+    private final FieldAccess fieldAccess;
     private final boolean ignoreOuterClassReference;
     private final boolean ignoreKnownSingletons;
-    private final boolean ignoreNonStrongReferences;
+    final boolean ignoreNonStrongReferences;
     private final MemoryMeterListener.Factory listenerFactory;
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final LayoutCache layoutCache;
+
+    /**
+     * The strategy resolved from the Guess mode, or null until instrumentation is available if the Guess mode requires
+     * it. Resolving it is idempotent, so it does not need to be volatile.
+     */
+    private Strategy strategy;
+
+    /**
+     * The layouts of the classes visited so far by this meter. They depend on the meter settings so they cannot be
+     * shared with meters having different settings.
+     */
+    private final ConcurrentMap<Class<?>, ClassLayout> layouts = new ConcurrentHashMap<Class<?>, ClassLayout>();
+
+    /**
+     * The shallow layouts of the classes measured so far by this meter, which hold the sizes given by its strategy.
+     */
+    private final ConcurrentMap<Class<?>, ShallowLayout> shallowLayouts = new ConcurrentHashMap<Class<?>, ShallowLayout>();
 
     public MemoryMeter() {
         this(new Callable<Set<Object>>() {
@@ -60,32 +158,46 @@ public class MemoryMeter {
                 // using a normal HashSet to track seen objects screws things up in two ways:
                 // - it can undercount objects that are "equal"
                 // - calling equals() can actually change object state (e.g. creating entrySet in HashMap)
-                return Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+                return new IdentityHashSet<Object>();
             }
-        }, true, Guess.NEVER, false, false, false, NoopMemoryMeterListener.FACTORY);
+        }, true, Guess.NEVER, FieldAccess.REFLECTION, false, false, false, NoopMemoryMeterListener.FACTORY, null, 1, null);
     }
 
     /**
-     * @param trackerProvider returns a Set with which to track seen objects and avoid cycles
+     * @param trackerProvider returns a Set with which to track seen objects and avoid cycles; its add method must
+     * return true only if the object was not already present
      * @param includeFullBufferSize
      * @param guess
+     * @param fieldAccess how the reference fields of the crawled objects are read
      * @param listenerFactory the <code>MemoryMeterListener.Factory</code>
+     * @param executor the executor running the parallel measurements, or null if measurements are not parallel
+     * @param parallelism the number of threads crawling the graph in parallel measurements
+     * @param layoutCache the cache of the class layouts, or null if they are not cached
      */
     private MemoryMeter(Callable<Set<Object>> trackerProvider,
                         boolean includeFullBufferSize,
                         Guess guess,
+                        FieldAccess fieldAccess,
                         boolean ignoreOuterClassReference,
                         boolean ignoreKnownSingletons,
                         boolean ignoreNonStrongReferences,
-                        MemoryMeterListener.Factory listenerFactory) {
+                        MemoryMeterListener.Factory listenerFactory,
+                        ExecutorService executor,
+                        int parallelism,
+                        LayoutCache layoutCache) {
 
         this.trackerProvider = trackerProvider;
         this.includeFullBufferSize = includeFullBufferSize;
         this.guess = guess;
+        this.fieldAccess = fieldAccess;
         this.ignoreOuterClassReference = ignoreOuterClassReference;
         this.ignoreKnownSingletons = ignoreKnownSingletons;
         this.ignoreNonStrongReferences = ignoreNonStrongReferences;
         this.listenerFactory = listenerFactory;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.layoutCache = layoutCache;
+        this.strategy = resolveStrategy(guess);
     }
 
     /**
@@ -96,25 +208,32 @@ public class MemoryMeter {
         return new MemoryMeter(trackerProvider,
                                includeFullBufferSize,
                                guess,
+                               fieldAccess,
                                ignoreOuterClassReference,
                                ignoreKnownSingletons,
                                ignoreNonStrongReferences,
-                               listenerFactory);
+                               listenerFactory,
+                               executor,
+                               parallelism,
+                               layoutCache);
     }
 
     /**
-     * @return a MemoryMeter that only counts the bytes remaining in a ByteBuffer
+     * @return a MemoryMeter that only counts the bytes remaining in a Buffer (of any type)
      * in measureDeep, rather than the full size of the backing array.
-     * TODO: handle other types of Buffers
      */
     public MemoryMeter omitSharedBufferOverhead() {
         return new MemoryMeter(trackerProvider,
                                false,
                                guess,
+                               fieldAccess,
                                ignoreOuterClassReference,
                                ignoreKnownSingletons,
                                ignoreNonStrongReferences,
-                               listenerFactory);
+                               listenerFactory,
+                               executor,
+                               parallelism,
+                               layoutCache);
     }
 
     /**
@@ -124,12 +243,34 @@ public class MemoryMeter {
         return new MemoryMeter(trackerProvider,
                                includeFullBufferSize,
                                guess,
+                               fieldAccess,
                                ignoreOuterClassReference,
                                ignoreKnownSingletons,
                                ignoreNonStrongReferences,
-                               listenerFactory);
+                               listenerFactory,
+                               executor,
+                               parallelism,
+                               layoutCache);
     }
     
+    /**
+     * @return a MemoryMeter that reads the reference fields of the crawled objects as specified. Reading them with
+     * sun.misc.Unsafe avoids the access checks and the accessor indirection of reflection.
+     */
+    public MemoryMeter withFieldAccess(FieldAccess fieldAccess) {
+        return new MemoryMeter(trackerProvider,
+                               includeFullBufferSize,
+                               guess,
+                               fieldAccess,
+                               ignoreOuterClassReference,
+                               ignoreKnownSingletons,
+                               ignoreNonStrongReferences,
+                               listenerFactory,
+                               executor,
+                               parallelism,
+                               layoutCache);
+    }
+
     /**
      * @return a MemoryMeter that ignores the size of an outer class reference
      */
@@ -137,10 +278,14 @@ public class MemoryMeter {
         return new MemoryMeter(trackerProvider,
                                includeFullBufferSize,
                                guess,
+                               fieldAccess,
                                true,
                                ignoreKnownSingletons,
                                ignoreNonStrongReferences,
-                               listenerFactory);
+                               listenerFactory,
+                               executor,
+                               parallelism,
+                               layoutCache);
     }
     
     /**
@@ -150,10 +295,14 @@ public class MemoryMeter {
         return new MemoryMeter(trackerProvider,
                                includeFullBufferSize,
                                guess,
+                               fieldAccess,
                                ignoreOuterClassReference,
                                true,
                                ignoreNonStrongReferences,
-                               listenerFactory);
+                               listenerFactory,
+                               executor,
+                               parallelism,
+                               layoutCache);
     }
     
     /**
@@ -163,10 +312,14 @@ public class MemoryMeter {
         return new MemoryMeter(trackerProvider,
                                includeFullBufferSize,
                                guess,
+                               fieldAccess,
                                ignoreOuterClassReference,
                                ignoreKnownSingletons,
                                true,
-                               listenerFactory);
+                               listenerFactory,
+                               executor,
+                               parallelism,
+                               layoutCache);
     }
 
     /**
@@ -187,45 +340,203 @@ public class MemoryMeter {
         return new MemoryMeter(trackerProvider,
                                includeFullBufferSize,
                                guess,
+                               fieldAccess,
+                               ignoreOuterClassReference,
+                               ignoreKnownSingletons,
+                               ignoreNonStrongReferences,
+                               new TreePrinter.Factory(depth),
+                               executor,
+                               parallelism,
+                               layoutCache);
+    }
+
+    /**
+     * Makes this <code>MemoryMeter</code> write the memory usage of the measured graphs to the specified writer in the
+     * folded-stack format used to render flame graphs, one line per path of field names from the root and class:
+     * <code>root;field;field;Class bytes</code>. The objects deeper than the specified depth are aggregated with
+     * their ancestor at that depth. countChildren writes the number of objects instead of their size. The lines are
+     * written at the end of each measurement, including the ones stopped by the limits of measureDeepUpTo.
+     * <p>
+     * The memory used is proportional to the number of distinct paths, plus one reference per object waiting to be
+     * crawled, as for the crawl stack itself.
+     *
+     * @param writer the writer to write to, which is flushed but not closed after each measurement
+     * @param depth the maximum number of fields in a path
+     */
+    public MemoryMeter enableFoldedStacks(Writer writer, int depth) {
+        if (writer == null)
+            throw new NullPointerException();
+        if (depth <= 0)
+            throw new IllegalArgumentException(String.format("the depth must be greater than zero (was %s).", depth));
+        return new MemoryMeter(trackerProvider,
+                               includeFullBufferSize,
+                               guess,
+                               fieldAccess,
+                               ignoreOuterClassReference,
+                               ignoreKnownSingletons,
+                               ignoreNonStrongReferences,
+                               new FoldedStackWriter.Factory(writer, depth),
+                               executor,
+                               parallelism,
+                               layoutCache);
+    }
+
+    /**
+     * Makes this <code>MemoryMeter</code> write the memory usage of the measured graphs to the specified stream in the
+     * folded-stack format, encoded in UTF-8. See enableFoldedStacks(Writer, int).
+     *
+     * @param out the stream to write to, which is flushed but not closed after each measurement
+     * @param depth the maximum number of fields in a path
+     */
+    public MemoryMeter enableFoldedStacks(OutputStream out, int depth) {
+        if (out == null)
+            throw new NullPointerException();
+        return enableFoldedStacks(new BufferedWriter(new OutputStreamWriter(out, Charset.forName("UTF-8"))), depth);
+    }
+
+    /**
+     * Makes measureDeep and countChildren crawl the object graph with several threads. The calling thread is one of
+     * them, the others are run by the specified executor. The visited objects are tracked by a concurrent identity set,
+     * so the tracker provider is not used, and listeners are not notified (so enableDebug and enableFoldedStacks have no
+     * effect).
+     *
+     * @param executor the executor running the crawling threads other than the calling thread
+     * @param parallelism the number of threads crawling the graph, including the calling thread
+     */
+    public MemoryMeter parallel(ExecutorService executor, int parallelism) {
+        if (executor == null)
+            throw new NullPointerException();
+        if (parallelism <= 0)
+            throw new IllegalArgumentException(String.format("the parallelism must be greater than zero (was %s).", parallelism));
+        return new MemoryMeter(trackerProvider,
+                               includeFullBufferSize,
+                               guess,
+                               fieldAccess,
+                               ignoreOuterClassReference,
+                               ignoreKnownSingletons,
+                               ignoreNonStrongReferences,
+                               listenerFactory,
+                               executor,
+                               parallelism,
+                               layoutCache);
+    }
+
+    /**
+     * Makes this <code>MemoryMeter</code> look up the layout of each class in the specified cache before computing
+     * it, and record it there otherwise, so that the layouts computed by a previous process can be reused once the
+     * cache has been saved. The shallow sizes of the instances are cached unless they are given by instrumentation,
+     * and the reference fields are cached when they are read with sun.misc.Unsafe (FieldAccess.UNSAFE, BEST or
+     * GENERATED), in which case a cache hit crawls the instances without walking the fields of their class.
+     *
+     * @param layoutCache the cache, see LayoutCache.open(File)
+     */
+    public MemoryMeter withLayoutCache(LayoutCache layoutCache) {
+        if (layoutCache == null)
+            throw new NullPointerException();
+        return new MemoryMeter(trackerProvider,
+                               includeFullBufferSize,
+                               guess,
+                               fieldAccess,
                                ignoreOuterClassReference,
                                ignoreKnownSingletons,
                                ignoreNonStrongReferences,
-                               new TreePrinter.Factory(depth));
+                               listenerFactory,
+                               executor,
+                               parallelism,
+                               layoutCache);
     }
 
     /**
-     * @return the shallow memory usage of @param object
+     * @return the shallow memory usage of @param object, as reported by the object itself if it is Measurable
      * @throws NullPointerException if object is null
      */
     public long measure(Object object) {
+        Class<?> type = object.getClass();
+        ShallowLayout layout = shallowLayoutOf(type);
+
+        // the size of an instance is the same for all the instances of its class, so it is only measured once
+        long size = layout.instanceSize;
+        if (size >= 0)
+            return size;
+
+        if (object instanceof Measurable)
+            return ((Measurable) object).shallowSize();
+
+        Strategy strategy = this.strategy;
+        if (strategy == null)
+            strategy = strategy();
+
+        if (type.isArray())
+            return strategy.sizeOfArray(object, layout);
+
+        if (layoutCache != null && strategy != Strategy.INSTRUMENTATION) {
+            size = layoutCache.instanceSize(type, strategy);
+            if (size < 0) {
+                size = strategy.sizeOfInstance(object, type);
+                layoutCache.recordInstanceSize(type, strategy, size);
+            }
+        } else {
+            size = strategy.sizeOfInstance(object, type);
+        }
+
+        // the size of a Class object depends on its static fields
+        if (type != Class.class)
+            layout.instanceSize = size;
+
+        return size;
+    }
+
+    /**
+     * Returns the strategy used to measure the objects, resolved from the Guess mode when this meter was built, or on
+     * first use if instrumentation was required but not available yet (e.g. if Jamm is attached later as an agent).
+     *
+     * @return the strategy used to measure the objects
+     * @throws IllegalStateException if instrumentation is not available and the Guess mode does not permit to guess
+     */
+    public Strategy strategy() {
+        Strategy strategy = this.strategy;
+        if (strategy != null)
+            return strategy;
+
+        strategy = resolveStrategy(guess);
+        if (strategy == null) {
+            if (guess == Guess.NEVER)
+                throw new IllegalStateException("Instrumentation is not set; Jamm must be set as -javaagent");
+            throw new IllegalStateException("Instrumentation is not set and sun.misc.Unsafe could not be obtained; Jamm must be set as -javaagent, or the SecurityManager must permit access to sun.misc.Unsafe");
+        }
+        this.strategy = strategy;
+        return strategy;
+    }
+
+    /**
+     * @return the strategy implementing the specified Guess mode, or null if it requires instrumentation and
+     * instrumentation is not available
+     */
+    private static Strategy resolveStrategy(Guess guess) {
         switch (guess) {
             case ALWAYS_UNSAFE:
-                return MemoryLayoutSpecification.sizeOfWithUnsafe(object);
+                return Strategy.UNSAFE;
             case ALWAYS_SPEC:
-                return MemoryLayoutSpecification.sizeOf(object);
+                return Strategy.SPEC;
             default:
-                if (instrumentation == null) {
-                    switch (guess) {
-                        case NEVER:
-                            throw new IllegalStateException("Instrumentation is not set; Jamm must be set as -javaagent");
-                        case FALLBACK_UNSAFE:
-                            if (!MemoryLayoutSpecification.hasUnsafe())
-                                throw new IllegalStateException("Instrumentation is not set and sun.misc.Unsafe could not be obtained; Jamm must be set as -javaagent, or the SecurityManager must permit access to sun.misc.Unsafe");
-                            //$FALL-THROUGH$
-                        case FALLBACK_BEST:
-                            if (MemoryLayoutSpecification.hasUnsafe())
-                                return MemoryLayoutSpecification.sizeOfWithUnsafe(object);
-                            //$FALL-THROUGH$
-                        case FALLBACK_SPEC:
-                            return MemoryLayoutSpecification.sizeOf(object);
-                    }
+                if (instrumentation != null)
+                    return Strategy.INSTRUMENTATION;
+                switch (guess) {
+                    case FALLBACK_SPEC:
+                        return Strategy.SPEC;
+                    case FALLBACK_UNSAFE:
+                        return UnsafeAccess.hasUnsafe() ? Strategy.UNSAFE : null;
+                    case FALLBACK_BEST:
+                        return UnsafeAccess.hasUnsafe() ? Strategy.UNSAFE : Strategy.SPEC;
+                    default:
+                        return null;
                 }
-                return instrumentation.getObjectSize(object);
         }
     }
 
     /**
-     * @return the memory usage of @param object including referenced objects
+     * @return the memory usage of @param object including referenced objects; with a probabilistic tracker this may
+     * be an undercount, see measureDeepErrorBound()
      * @throws NullPointerException if object is null
      */
     public long measureDeep(Object object) {
@@ -233,16 +544,13 @@ public class MemoryMeter {
             throw new NullPointerException(); // match getObjectSize behavior
         }
 
-        if (ignoreClass(object.getClass()))
+        if (layoutOf(object.getClass()).ignored)
             return 0;
 
-        Set<Object> tracker;
-        try {
-            tracker = trackerProvider.call();
-        }
-        catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        if (executor != null)
+            return ParallelMeasurement.run(this, object, false, executor, parallelism);
+
+        Set<Object> tracker = newTracker();
         MemoryMeterListener listener = listenerFactory.newInstance();
 
         tracker.add(object);
@@ -256,24 +564,360 @@ public class MemoryMeter {
         while (!stack.isEmpty()) {
             Object current = stack.pop();
             assert current != null;
-            long size = measure(current);
-            listener.objectMeasured(current, size);
-            total += size;
-
-            if (current instanceof Object[]) {
-                addArrayChildren((Object[]) current, stack, tracker, listener);
-            } else if (current instanceof ByteBuffer && !includeFullBufferSize) {
-                total += ((ByteBuffer) current).remaining();
-            } else {
-            	Object referent = (ignoreNonStrongReferences && (current instanceof Reference)) ? ((Reference<?>)current).get() : null;
-                addFieldChildren(current, stack, tracker, referent, listener);
-            }
+            total += measureAndAddChildren(current, stack, tracker, listener);
         }
 
         listener.done(total);
         return total;
     }
 
+    /**
+     * Measures the memory usage of @param object including referenced objects, like measureDeep, but stops as soon as
+     * the memory usage exceeds @param maxBytes, the number of objects measured exceeds @param maxObjects, or the
+     * measurement has lasted more than @param timeout. The cost of checking whether a graph exceeds a limit is then
+     * proportional to the limit rather than to the size of the graph.
+     * <p>
+     * The measurement is always performed by the calling thread. If a limit is crossed, the listener (e.g. the one of
+     * enableDebug or enableFoldedStacks) is notified that the measurement is done with the size measured so far.
+     *
+     * @return the memory usage and number of objects measured, flagged as lower bounds if a limit was crossed before
+     * the whole graph was crawled
+     * @throws NullPointerException if object or unit is null
+     * @throws IllegalArgumentException if one of the limits is negative
+     */
+    public DeepMeasurement measureDeepUpTo(Object object, long maxBytes, long maxObjects, long timeout, TimeUnit unit) {
+        if (object == null || unit == null)
+            throw new NullPointerException();
+        if (maxBytes < 0 || maxObjects < 0 || timeout < 0)
+            throw new IllegalArgumentException(String.format("The limits must not be negative (was %d bytes, %d objects, %d %s).",
+                                                             maxBytes, maxObjects, timeout, unit));
+
+        if (layoutOf(object.getClass()).ignored)
+            return new DeepMeasurement(0, 0, false);
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        MeasurementCursor cursor = new MeasurementCursor(this, object, newTracker(), listenerFactory.newInstance());
+        while (!cursor.isComplete()) {
+            cursor.step();
+            long objects = cursor.objects();
+            // reading the clock is not free, so the deadline is only checked every DEADLINE_CHECK_INTERVAL objects
+            if (cursor.bytes() > maxBytes || objects > maxObjects
+                || (objects % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() - deadline > 0))
+                break;
+        }
+        // the listener is notified of the part that has been measured, e.g. to print the truncated tree
+        cursor.stop();
+
+        return new DeepMeasurement(cursor.bytes(), cursor.objects(), !cursor.isComplete());
+    }
+
+    /**
+     * Returns a cursor measuring the memory usage of @param object including referenced objects, like measureDeep, in
+     * as many steps as needed. Nothing is measured until the cursor is advanced.
+     * <p>
+     * The steps are always performed by the thread advancing the cursor.
+     *
+     * @throws NullPointerException if object is null
+     */
+    public MeasurementCursor cursor(Object object) {
+        if (object == null)
+            throw new NullPointerException();
+
+        Object root = layoutOf(object.getClass()).ignored ? null : object;
+        return new MeasurementCursor(this, root, newTracker(), listenerFactory.newInstance());
+    }
+
+    /**
+     * Measures the memory usage of @param object including referenced objects, like measureDeep, and breaks it down per
+     * class: number of instances and shallow memory usage.
+     * <p>
+     * The measurement is always performed by the calling thread, and the listener is not notified.
+     *
+     * @return the class histogram of the objects reachable from the specified one
+     * @throws NullPointerException if object is null
+     */
+    public ClassHistogram measureHistogram(Object object) {
+        if (object == null)
+            throw new NullPointerException();
+
+        ClassHistogram histogram = new ClassHistogram();
+        Object root = layoutOf(object.getClass()).ignored ? null : object;
+        new MeasurementCursor(this, root, newTracker(), histogram.listener()).advance(Long.MAX_VALUE);
+        return histogram;
+    }
+
+    /**
+     * Measures the heap memory usage of @param object including referenced objects, like measureDeep, and the native
+     * memory of the direct buffers (of any type) it references. The memory shared by the slices, duplicates and views
+     * of a direct buffer is accounted for once, with the full capacity of the buffer which allocated it.
+     * <p>
+     * A direct buffer references its cleaner, which is a phantom reference linked to the cleaners of all the other
+     * direct buffers of the JVM: use ignoreNonStrongReferences() so that only the buffers referenced by the graph are
+     * accounted for.
+     * <p>
+     * The measurement is always performed by the calling thread, and the listener is not notified.
+     *
+     * @return the heap and native memory usage of the objects reachable from the specified one
+     * @throws NullPointerException if object is null
+     */
+    public OffHeapMeasurement measureDeepWithOffHeap(Object object) {
+        if (object == null)
+            throw new NullPointerException();
+
+        OffHeapAccounting accounting = new OffHeapAccounting();
+        Object root = layoutOf(object.getClass()).ignored ? null : object;
+        MeasurementCursor cursor = new MeasurementCursor(this, root, newTracker(), accounting);
+        cursor.advance(Long.MAX_VALUE);
+        return accounting.toMeasurement(cursor.bytes());
+    }
+
+    /**
+     * Measures the memory usage of @param object including referenced objects, like measureDeep, and exports the
+     * measured graph to @param file in a compact binary format: the class, shallow size and parent of each object, and
+     * the field through which it was reached. The file can then be read with GraphDump.read, on another JVM, to
+     * rebuild the totals, the class histogram and the tree of the objects.
+     * <p>
+     * The measurement is always performed by the calling thread, and the listener is not notified.
+     *
+     * @return the memory usage of the graph
+     * @throws NullPointerException if object or file is null
+     * @throws IOException if the file could not be written
+     */
+    public long measureDeepToFile(Object object, File file) throws IOException {
+        if (object == null || file == null)
+            throw new NullPointerException();
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            GraphExporter exporter = new GraphExporter(out.getChannel());
+            Object root = layoutOf(object.getClass()).ignored ? null : object;
+            MeasurementCursor cursor = new MeasurementCursor(this, root, newTracker(), exporter);
+            cursor.advance(Long.MAX_VALUE);
+            if (root == null)
+                exporter.done(0);
+            exporter.finish();
+            return cursor.bytes();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Measures the retained sizes of the objects reachable from @param object: the memory that would be freed if they
+     * were no longer referenced. Unlike measureDeep, which counts a shared object for the first child reaching it, the
+     * retained size of a child only includes the objects that are not reachable without going through it.
+     * <p>
+     * The whole reference graph is recorded in primitive arrays during the traversal, then its dominator tree is
+     * computed, so this uses a few tens of bytes of memory per reachable object and per reference. The measurement is
+     * always performed by the calling thread, the tracker provider is not used and the listener is not notified.
+     *
+     * @param n the maximum number of objects immediately dominated by @param object to report
+     * @return the retained size of @param object and of the n largest objects it immediately dominates
+     * @throws NullPointerException if object is null
+     * @throws IllegalArgumentException if n is negative
+     */
+    public RetainedSizes measureRetained(Object object, int n) {
+        if (object == null)
+            throw new NullPointerException();
+        if (n < 0)
+            throw new IllegalArgumentException(String.format("the number of objects must not be negative (was %s).", n));
+
+        if (layoutOf(object.getClass()).ignored)
+            return new RetainedSizes(0, 0, new Object[0], new long[0]);
+
+        return RetainedMeasurement.run(this, object, n);
+    }
+
+    /**
+     * Estimates the memory usage of @param object including referenced objects. The arrays of references with at least
+     * @param minArrayLength elements, including the tables backing collections like ArrayList or HashMap, are not
+     * crawled entirely: the graphs reachable from @param sampleSize elements chosen at random are measured and
+     * extrapolated to all the elements. The cost of the estimation then no longer depends on the length of the arrays.
+     * <p>
+     * The estimation is always performed by the calling thread, and the listener is not notified.
+     *
+     * @return the estimated memory usage with its 95% confidence interval
+     * @throws NullPointerException if object is null
+     * @throws IllegalArgumentException if minArrayLength is negative or sampleSize is less than 2
+     */
+    public SizeEstimate measureDeepEstimate(Object object, int minArrayLength, int sampleSize) {
+        if (object == null)
+            throw new NullPointerException();
+        if (minArrayLength < 0)
+            throw new IllegalArgumentException(String.format("The minimum array length must not be negative (was %d).", minArrayLength));
+        if (sampleSize < 2)
+            throw new IllegalArgumentException(String.format("The sample size must be at least 2 (was %d).", sampleSize));
+
+        if (layoutOf(object.getClass()).ignored)
+            return new SizeEstimate(0, 0, 0, true);
+
+        return SampledMeasurement.run(this, object, minArrayLength, sampleSize, newTracker());
+    }
+
+    /**
+     * @return a new tracker from the tracker provider
+     */
+    private Set<Object> newTracker() {
+        try {
+            return trackerProvider.call();
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Measures the specified object and pushes onto the stack its children accepted by the tracker.
+     *
+     * @return the number of bytes accounted for the object, excluding its children
+     */
+    long measureAndAddChildren(Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+        long size = measure(current);
+        // the remaining bytes replace the backing array of the buffer, which is not crawled
+        boolean remainingOnly = current instanceof Buffer && !includeFullBufferSize;
+        if (remainingOnly)
+            size += OffHeapAccounting.remainingBytes((Buffer) current);
+        listener.objectMeasured(current, size);
+
+        if (current instanceof Object[]) {
+            addArrayChildren((Object[]) current, stack, tracker, listener);
+        } else if (!remainingOnly) {
+            Object referent = (ignoreNonStrongReferences && (current instanceof Reference)) ? ((Reference<?>)current).get() : null;
+            addFieldChildren(current, stack, tracker, referent, listener);
+        }
+        return size;
+    }
+
+    /**
+     * Measures the object graphs reachable from the specified roots in a single pass, attributing each object either to
+     * the only root it is reachable from, or to the bytes shared by several roots. Unlike measuring the roots one by
+     * one, the shared objects are only crawled and counted once.
+     * <p>
+     * The roots are always measured by the calling thread, and the tracker provider is not used.
+     *
+     * @param roots the roots to measure
+     * @return the exclusive bytes of each root, in the iteration order of the collection, and the shared bytes
+     * @throws NullPointerException if one of the roots is null
+     */
+    public RootsMeasurement measureDeepAll(Collection<?> roots) {
+        OwnershipTracker tracker = new OwnershipTracker(roots.size());
+        Deque<Object> stack = new ArrayDeque<Object>();
+        for (Object root : roots) {
+            if (root == null)
+                throw new NullPointerException();
+
+            // a root reachable from a previous root is shared, but is not crawled again
+            if (!layoutOf(root.getClass()).ignored && tracker.add(root)) {
+                stack.push(root);
+                while (!stack.isEmpty())
+                    tracker.exclusiveBytes[tracker.root] += measureAndAddChildren(stack.pop(), stack, tracker, NoopMemoryMeterListener.INSTANCE);
+            }
+            tracker.root++;
+        }
+        return new RootsMeasurement(tracker.exclusiveBytes, tracker.sharedBytes);
+    }
+
+    /**
+     * Tracks the objects visited by measureDeepAll along with their owner: the index of the only root they have been
+     * reached from so far, or SHARED.
+     * <p>
+     * When the root being crawled reaches an object owned by another root, that object and all the objects reachable
+     * from it (which are owned by the same root, or already shared) become shared. Each object changes owner at most
+     * once, so the whole measurement crawls each object at most twice.
+     */
+    private final class OwnershipTracker extends AbstractSet<Object> {
+
+        private static final int UNVISITED = -2;
+
+        private static final int SHARED = -1;
+
+        private final IdentityIntMap owners = new IdentityIntMap(UNVISITED);
+
+        private final long[] exclusiveBytes;
+
+        private long sharedBytes;
+
+        /**
+         * The index of the root being crawled.
+         */
+        private int root;
+
+        private OwnershipTracker(int rootCount) {
+            this.exclusiveBytes = new long[rootCount];
+        }
+
+        @Override
+        public boolean add(Object o) {
+            int owner = owners.get(o);
+            if (owner == UNVISITED) {
+                owners.put(o, root);
+                return true;
+            }
+            if (owner != root && owner != SHARED)
+                share(o, owner);
+            return false;
+        }
+
+        /**
+         * Marks as shared the specified object and the objects owned by the same root reachable from it, moving their
+         * bytes from the exclusive bytes of that root to the shared bytes.
+         */
+        private void share(Object object, final int owner) {
+            owners.put(object, SHARED);
+
+            Set<Object> sharing = new AbstractSet<Object>() {
+                @Override
+                public boolean add(Object o) {
+                    if (owners.get(o) != owner)
+                        return false;
+                    owners.put(o, SHARED);
+                    return true;
+                }
+
+                @Override
+                public Iterator<Object> iterator() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public int size() {
+                    return owners.size();
+                }
+            };
+
+            Deque<Object> stack = new ArrayDeque<Object>();
+            stack.push(object);
+            while (!stack.isEmpty()) {
+                long size = measureAndAddChildren(stack.pop(), stack, sharing, NoopMemoryMeterListener.INSTANCE);
+                exclusiveBytes[owner] -= size;
+                sharedBytes += size;
+            }
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int size() {
+            return owners.size();
+        }
+    }
+
+    /**
+     * @return the maximum probability for an object reachable from the measured one to be missed by measureDeep,
+     * because the tracker wrongly considers it as already visited. This is 0 unless the tracker provider is
+     * probabilistic, like BloomFilterSet.provider(), in which case the bound only holds as long as a measurement visits
+     * at most the expected number of objects. Note that the objects only reachable through a missed object are missed
+     * too. Parallel measurements do not use the tracker provider, so their bound is always 0.
+     */
+    public double measureDeepErrorBound() {
+        if (executor == null && trackerProvider instanceof BloomFilterSet.Provider)
+            return ((BloomFilterSet.Provider<?>) trackerProvider).errorBound();
+        return 0;
+    }
+
     /**
      * @return the number of child objects referenced by @param object
      * @throws NullPointerException if object is null
@@ -283,8 +927,11 @@ public class MemoryMeter {
             throw new NullPointerException();
         }
 
+        if (executor != null)
+            return ParallelMeasurement.run(this, object, true, executor, parallelism);
+
         MemoryMeterListener listener = listenerFactory.newInstance();
-        Set<Object> tracker = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        Set<Object> tracker = new IdentityHashSet<Object>();
         tracker.add(object);
         listener.started(object);
         Deque<Object> stack = new ArrayDeque<Object>();
@@ -309,43 +956,180 @@ public class MemoryMeter {
         return total;
     }
 
-    private void addFieldChildren(Object current, Deque<Object> stack, Set<Object> tracker, Object ignorableChild, MemoryMeterListener listener) {
-        Class<?> cls = current.getClass();
-        while (!skipClass(cls)) {
+    void addFieldChildren(Object current, Deque<Object> stack, Set<Object> tracker, Object ignorableChild, MemoryMeterListener listener) {
+        ClassLayout layout = crawlLayoutOf(current.getClass());
+        TypeHandler handler = layout.handler();
+        if (handler != null) {
+            handler.addChildren(current, stack, tracker, listener);
+            return;
+        }
+
+        String[] names = layout.referenceNames();
+        for (int i = 0; i < names.length; i++) {
+            Object child = layout.referenceFieldValue(current, i);
+            if (child != ignorableChild) {
+                if (child != null && tracker.add(child)) {
+                    stack.push(child);
+                    listener.fieldAdded(current, names[i], child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the layout of the specified class, computing it if this meter has not visited that class yet. Its
+     * reference fields are not computed, see crawlLayoutOf.
+     */
+    ClassLayout layoutOf(Class<?> cls) {
+        ClassLayout layout = layouts.get(cls);
+        if (layout == null) {
+            layout = new ClassLayout(TypeHandler.hasKnownElements(cls), ignoreClass(cls));
+            ClassLayout previous = layouts.putIfAbsent(cls, layout);
+            if (previous != null)
+                layout = previous;
+        }
+        return layout;
+    }
+
+    /**
+     * Returns the layout of the specified class, computing its reference fields if this meter has not crawled an
+     * instance of that class yet.
+     */
+    private ClassLayout crawlLayoutOf(Class<?> cls) {
+        ClassLayout layout = layoutOf(cls);
+        if (!layout.isInitialized()) {
+            // the handlers must not be generated twice for the same class
+            synchronized (layout) {
+                if (!layout.isInitialized())
+                    initializeLayout(cls, layout);
+            }
+        }
+        return layout;
+    }
+
+    private void initializeLayout(Class<?> type, ClassLayout layout) {
+        // the cached fields are only read at their offsets, as reading them through reflection needs the Field objects
+        boolean cached = layoutCache != null && fieldAccess != FieldAccess.REFLECTION && UnsafeAccess.hasUnsafe();
+        if (cached && initializeLayoutFromCache(type, layout))
+            return;
+
+        List<Field> referenceFields = new ArrayList<Field>();
+        for (Class<?> cls = type; !skipClass(cls); cls = cls.getSuperclass()) {
             for (Field field : cls.getDeclaredFields()) {
                 if (field.getType().isPrimitive()
                         || Modifier.isStatic(field.getModifiers())
                         || field.isAnnotationPresent(Unmetered.class)) {
                     continue;
                 }
-                
+
                 if (ignoreOuterClassReference && field.getName().matches(outerClassReference)) {
-                	continue;
+                    continue;
                 }
 
-                if (ignoreClass(field.getType())) {
-                	continue;
+                // the referent of a phantom reference cannot be obtained with get(), so it is skipped here
+                if (ignoreNonStrongReferences && cls == Reference.class && field.getName().equals("referent")) {
+                    continue;
                 }
 
-                field.setAccessible(true);
-                Object child;
-                try {
-                    child = field.get(current);
-                } catch (IllegalAccessException e) {
-                    throw new RuntimeException(e);
-                }
-                
-                if (child != ignorableChild) {
-	                if (child != null && !tracker.contains(child)) {
-	                    stack.push(child);
-	                    tracker.add(child);
-	                    listener.fieldAdded(current, field.getName(), child);
-	                }
-                }
+                referenceFields.add(field);
             }
+        }
 
-            cls = cls.getSuperclass();
+        // the fields are cached before being filtered by type, as the types may be ignored by other meters
+        if (cached) {
+            Field[] fields = referenceFields.toArray(new Field[referenceFields.size()]);
+            long[] offsets = UnsafeAccess.offsetsOf(fields);
+            if (offsets != null)
+                layoutCache.recordReferenceFields(type, fieldFilters(), fields, offsets);
         }
+
+        for (Iterator<Field> iterator = referenceFields.iterator(); iterator.hasNext(); ) {
+            if (ignoreClass(iterator.next().getType()))
+                iterator.remove();
+        }
+        Field[] fields = referenceFields.toArray(new Field[referenceFields.size()]);
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            names[i] = fields[i].getName();
+
+        long[] offsets = null;
+        switch (fieldAccess) {
+            case UNSAFE:
+                if (!UnsafeAccess.hasUnsafe())
+                    throw new IllegalStateException("sun.misc.Unsafe could not be obtained; the SecurityManager must permit access to sun.misc.Unsafe");
+                //$FALL-THROUGH$
+            case GENERATED:
+            case BEST:
+                // some classes (e.g. hidden classes) do not support field offsets, their fields are read through
+                // reflection instead
+                if (UnsafeAccess.hasUnsafe())
+                    offsets = UnsafeAccess.offsetsOf(fields);
+                break;
+            default:
+                break;
+        }
+        initializeLayout(type, layout, names, fields, offsets);
+    }
+
+    /**
+     * Initializes the layout of the specified class from the reference fields recorded in the layout cache, without
+     * walking the fields of the class and of its superclasses.
+     *
+     * @return <code>true</code> if the layout has been initialized, <code>false</code> if the fields were not cached
+     */
+    private boolean initializeLayoutFromCache(Class<?> type, ClassLayout layout) {
+        LayoutCache.CachedFields cachedFields = layoutCache.referenceFields(type, fieldFilters());
+        if (cachedFields == null)
+            return false;
+
+        String[] names = new String[cachedFields.size()];
+        long[] offsets = new long[cachedFields.size()];
+        int count = 0;
+        try {
+            for (int i = 0; i < cachedFields.size(); i++) {
+                if (ignoreClass(cachedFields.type(type, i)))
+                    continue;
+                names[count] = cachedFields.name(i);
+                offsets[count] = cachedFields.offset(i);
+                count++;
+            }
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+        initializeLayout(type, layout, Arrays.copyOf(names, count), null, Arrays.copyOf(offsets, count));
+        return true;
+    }
+
+    /**
+     * @return the settings of this meter filtering the reference fields, apart from their type
+     */
+    private String fieldFilters() {
+        return (ignoreOuterClassReference ? "outer" : "") + ',' + (ignoreNonStrongReferences ? "referent" : "");
+    }
+
+    /**
+     * Initializes the layout of the specified class with the specified reference fields, selecting the handler of the
+     * class if its children are known, or else generating one if the fields are read at their offsets.
+     */
+    private void initializeLayout(Class<?> type, ClassLayout layout, String[] names, Field[] fields, long[] offsets) {
+        TypeHandler handler = TypeHandler.of(type, names, fields, offsets);
+        if (handler == null && offsets != null && fieldAccess == FieldAccess.GENERATED)
+            handler = TypeHandlerGenerator.generate(type, names, offsets);
+        layout.initialize(names, fields, offsets, handler);
+    }
+
+    /**
+     * Returns the shallow layout of the specified class, computing it if this meter has not measured that class yet.
+     */
+    private ShallowLayout shallowLayoutOf(Class<?> cls) {
+        ShallowLayout layout = shallowLayouts.get(cls);
+        if (layout == null) {
+            layout = new ShallowLayout(cls);
+            ShallowLayout previous = shallowLayouts.putIfAbsent(cls, layout);
+            if (previous != null)
+                layout = previous;
+        }
+        return layout;
     }
 
     private static final Class clsJLRModule;
@@ -393,28 +1177,26 @@ public class MemoryMeter {
         if (cls.isAnnotationPresent(Unmetered.class))
             return true;
 
-        Class<?>[] interfaces = cls.getInterfaces();
-        for (int i = 0; i < interfaces.length; i++) {
-            if (isAnnotationPresent(cls.getInterfaces()[i]))
+        for (Class<?> itf : cls.getInterfaces()) {
+            if (isAnnotationPresent(itf))
                 return true;
         }
 
         return isAnnotationPresent(cls.getSuperclass());
     }
 
-    private void addArrayChildren(Object[] current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
-        for (int i = 0; i < current.length; i++) {
+    void addArrayChildren(Object[] current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+        addArrayChildren(current, 0, current.length, stack, tracker, listener);
+    }
+
+    void addArrayChildren(Object[] current, int from, int to, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+        boolean knownElements = layoutOf(current.getClass()).knownElements;
+        for (int i = from; i < to; i++) {
             Object child = current[i];
-            if (child != null && !tracker.contains(child)) {
-            	
-                Class<?> childCls = child.getClass();
-                if (ignoreClass(childCls)) {
-                	continue;
-                }
-                
+            // the ignored elements are skipped before being tracked, as the ignored fields are
+            if (child != null && (knownElements || !layoutOf(child.getClass()).ignored) && tracker.add(child)) {
                 stack.push(child);
-                tracker.add(child);
-                listener.fieldAdded(current, Integer.toString(i) , child);
+                listener.elementAdded(current, i, child);
             }
         }
     }
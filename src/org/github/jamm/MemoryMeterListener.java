@@ -28,11 +28,22 @@ interface MemoryMeterListener {
      */
     void fieldAdded(Object obj, String fieldName, Object fieldValue);
 
+    /**
+     * Notification that the element from the specified array has been added. The index is passed as is, rather than as a
+     * field name, so that crawling large arrays does not create a string per element.
+     *
+     * @param array the array for which an element has been added
+     * @param index the element index
+     * @param element the element value
+     */
+    void elementAdded(Object[] array, int index, Object element);
+
     /**
      * Notification that the size of the specified object has been measured.
      *
      * @param current the object that has been measured
-     * @param size the object size in bytes
+     * @param size the object size in bytes, including the bytes remaining in a buffer when the meter omits the shared
+     * buffer overhead
      */
     void objectMeasured(Object current, long size);
 
@@ -44,8 +55,9 @@ interface MemoryMeterListener {
     void objectCounted(Object current);
 
     /**
-     * Notification that the entire graphs has been measured.
-     * @param size the size of the entire graph.
+     * Notification that the entire graphs has been measured, or that the measurement has been stopped by the limits
+     * of measureDeepUpTo.
+     * @param size the size of the entire graph, or of the part that has been measured if it was stopped.
      */
     void done(long size);
 }
@@ -8,7 +8,7 @@ public final class NoopMemoryMeterListener implements MemoryMeterListener {
     /**
      * Singleton instance.
      */
-    private static final MemoryMeterListener INSTANCE = new NoopMemoryMeterListener();
+    static final MemoryMeterListener INSTANCE = new NoopMemoryMeterListener();
 
     public static final Factory FACTORY = new Factory() {
 
@@ -26,6 +26,10 @@ public final class NoopMemoryMeterListener implements MemoryMeterListener {
     public void fieldAdded(Object obj, String fieldName, Object fieldValue) {
     }
 
+    @Override
+    public void elementAdded(Object[] array, int index, Object element) {
+    }
+
     @Override
     public void done(long size) {
     }
@@ -0,0 +1,152 @@
+package org.github.jamm;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Accounts for the native memory of the direct buffers measured by <code>MemoryMeter.measureDeepWithOffHeap</code>.
+ * <p>
+ * The slices, duplicates and views of a direct buffer keep a reference to the buffer they were created from (their
+ * attachment), down to the buffer which allocated or mapped the memory. The native memory is accounted for once per
+ * such allocation, with the capacity of the allocating buffer, however many of its slices are reached. The attachments
+ * are read with <code>sun.misc.Unsafe</code>; without it, each direct buffer is accounted for as its own allocation.
+ */
+final class OffHeapAccounting implements MemoryMeterListener {
+
+    /**
+     * The offset of the attachment field of each direct buffer class, or -1 if the class has none.
+     */
+    private static final ConcurrentMap<Class<?>, Long> ATTACHMENT_OFFSETS = new ConcurrentHashMap<Class<?>, Long>();
+
+    /**
+     * The offset of the file descriptor of the mapped buffers, or -1 if it cannot be read.
+     */
+    private static final long FD_OFFSET = offsetOf(MappedByteBuffer.class, "fd");
+
+    private final Set<Object> allocations = new IdentityHashSet<Object>();
+
+    private long nativeBytes;
+
+    private long mappedBytes;
+
+    /**
+     * @return the size in bytes of the elements of the specified buffer
+     */
+    static int elementSize(Buffer buffer) {
+        if (buffer instanceof ByteBuffer)
+            return 1;
+        if (buffer instanceof CharBuffer || buffer instanceof ShortBuffer)
+            return 2;
+        if (buffer instanceof IntBuffer || buffer instanceof FloatBuffer)
+            return 4;
+        if (buffer instanceof LongBuffer || buffer instanceof DoubleBuffer)
+            return 8;
+        throw new IllegalArgumentException(String.format("Unknown buffer type (was %s).", buffer.getClass().getName()));
+    }
+
+    /**
+     * @return the number of bytes between the position and the limit of the specified buffer
+     */
+    static long remainingBytes(Buffer buffer) {
+        return (long) buffer.remaining() * elementSize(buffer);
+    }
+
+    /**
+     * @return the buffer which allocated or mapped the native memory of the specified direct buffer
+     */
+    static Buffer allocationOf(Buffer buffer) {
+        while (true) {
+            Object attachment = attachmentOf(buffer);
+            if (!(attachment instanceof Buffer))
+                return buffer;
+            buffer = (Buffer) attachment;
+        }
+    }
+
+    private static Object attachmentOf(Buffer buffer) {
+        Class<?> type = buffer.getClass();
+        Long offset = ATTACHMENT_OFFSETS.get(type);
+        if (offset == null) {
+            offset = -1L;
+            for (Class<?> cls = type; cls != null && offset < 0; cls = cls.getSuperclass())
+                offset = offsetOf(cls, "att");
+            ATTACHMENT_OFFSETS.put(type, offset);
+        }
+        return offset < 0 ? null : UnsafeAccess.unsafe.getObject(buffer, offset);
+    }
+
+    private static boolean isMapped(Buffer buffer) {
+        return FD_OFFSET >= 0
+                && buffer instanceof MappedByteBuffer
+                && UnsafeAccess.unsafe.getObject(buffer, FD_OFFSET) != null;
+    }
+
+    /**
+     * @return the offset of the specified field declared by the specified class, or -1 if it does not exist or
+     * sun.misc.Unsafe is not available
+     */
+    private static long offsetOf(Class<?> cls, String name) {
+        if (!UnsafeAccess.hasUnsafe())
+            return -1;
+        try {
+            Field field = cls.getDeclaredField(name);
+            return UnsafeAccess.unsafe.objectFieldOffset(field);
+        } catch (NoSuchFieldException e) {
+            return -1;
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the result of the measurement, whose heap memory usage is the specified one
+     */
+    OffHeapMeasurement toMeasurement(long heapBytes) {
+        return new OffHeapMeasurement(heapBytes, nativeBytes, mappedBytes, allocations.size());
+    }
+
+    @Override
+    public void objectMeasured(Object current, long size) {
+        if (!(current instanceof Buffer) || !((Buffer) current).isDirect())
+            return;
+
+        Buffer allocation = allocationOf((Buffer) current);
+        if (allocations.add(allocation)) {
+            long bytes = (long) allocation.capacity() * elementSize(allocation);
+            nativeBytes += bytes;
+            if (isMapped(allocation))
+                mappedBytes += bytes;
+        }
+    }
+
+    @Override
+    public void started(Object obj) {
+    }
+
+    @Override
+    public void fieldAdded(Object obj, String fieldName, Object fieldValue) {
+    }
+
+    @Override
+    public void elementAdded(Object[] array, int index, Object element) {
+    }
+
+    @Override
+    public void objectCounted(Object current) {
+    }
+
+    @Override
+    public void done(long size) {
+    }
+}
@@ -0,0 +1,67 @@
+package org.github.jamm;
+
+/**
+ * The result of <code>MemoryMeter.measureDeepWithOffHeap</code>: the heap memory usage of an object graph, and the
+ * native memory of the direct buffers it references.
+ * <p>
+ * The native memory of a direct buffer is shared with its slices, duplicates and views, so it is accounted for once
+ * per allocation, with the full capacity of the buffer which allocated it. Mapped buffers are included in the native
+ * memory, and also reported on their own since their memory is backed by a file rather than allocated.
+ */
+public final class OffHeapMeasurement {
+
+    private final long heapBytes;
+
+    private final long nativeBytes;
+
+    private final long mappedBytes;
+
+    private final int allocations;
+
+    OffHeapMeasurement(long heapBytes, long nativeBytes, long mappedBytes, int allocations) {
+        this.heapBytes = heapBytes;
+        this.nativeBytes = nativeBytes;
+        this.mappedBytes = mappedBytes;
+        this.allocations = allocations;
+    }
+
+    /**
+     * @return the heap memory usage of the graph, as measured by measureDeep
+     */
+    public long heapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * @return the native memory of the direct buffers reachable from the graph, including the mapped ones
+     */
+    public long nativeBytes() {
+        return nativeBytes;
+    }
+
+    /**
+     * @return the part of the native memory that is mapped from files
+     */
+    public long mappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * @return the number of distinct native allocations (or mappings) the native memory is made of
+     */
+    public int allocations() {
+        return allocations;
+    }
+
+    /**
+     * @return the heap and native memory usage of the graph
+     */
+    public long totalBytes() {
+        return heapBytes + nativeBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("OffHeapMeasurement[heap=%d, native=%d, mapped=%d, allocations=%d]", heapBytes, nativeBytes, mappedBytes, allocations);
+    }
+}
@@ -0,0 +1,241 @@
+package org.github.jamm;
+
+import java.lang.ref.Reference;
+import java.nio.Buffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A deep measurement (or count) of an object graph performed by several threads.
+ * <p>
+ * Each worker crawls the graph from its own stack. Whenever the shared queue runs dry, a worker with enough pending
+ * objects moves the oldest half of its stack to the queue, where idle workers pick it up. Large arrays are split in
+ * ranges of elements so that their elements can be crawled by several workers. The visited objects are tracked by a
+ * single <code>ConcurrentIdentitySet</code> and each worker sums the sizes locally, publishing its total when it runs
+ * out of work.
+ * <p>
+ * The calling thread is one of the workers, so a measurement completes even if the executor does not run the other
+ * workers in time.
+ */
+final class ParallelMeasurement {
+
+    /**
+     * The number of objects a worker crawls between two checks of the shared queue.
+     */
+    private static final int SHARE_CHECK_INTERVAL = 64;
+
+    /**
+     * The minimum number of pending objects a worker must have to share some of them.
+     */
+    private static final int SHARE_THRESHOLD = 32;
+
+    /**
+     * The maximum number of elements of an array crawled as a single unit of work.
+     */
+    private static final int ARRAY_CHUNK = 4096;
+
+    private final MemoryMeter meter;
+
+    /**
+     * <code>true</code> if the objects must be counted rather than measured.
+     */
+    private final boolean count;
+
+    private final Set<Object> tracker;
+
+    /**
+     * The batches of pending objects shared between the workers.
+     */
+    private final ConcurrentLinkedQueue<Object[]> shared = new ConcurrentLinkedQueue<Object[]>();
+
+    /**
+     * The number of batches in the shared queue plus the number of workers having pending objects. The measurement is
+     * complete when it reaches 0, as only a worker with pending objects can create new batches.
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private volatile Throwable failure;
+
+    private ParallelMeasurement(MemoryMeter meter, boolean count, int parallelism) {
+        this.meter = meter;
+        this.count = count;
+        this.tracker = new ConcurrentIdentitySet(parallelism);
+    }
+
+    /**
+     * Measures (or counts) the object graph reachable from the specified root.
+     *
+     * @param meter the meter defining how objects are measured and crawled
+     * @param root the root object
+     * @param count <code>true</code> to count the objects rather than measuring them
+     * @param executor the executor running the workers other than the calling thread
+     * @param parallelism the number of workers, including the calling thread
+     * @return the total size (or count) of the objects reachable from the root
+     */
+    static long run(MemoryMeter meter, Object root, boolean count, ExecutorService executor, int parallelism) {
+        return new ParallelMeasurement(meter, count, parallelism).run(root, executor, parallelism);
+    }
+
+    private long run(Object root, ExecutorService executor, int parallelism) {
+        tracker.add(root);
+        outstanding.incrementAndGet();
+        shared.add(new Object[] { root });
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(parallelism - 1);
+        try {
+            for (int i = 1; i < parallelism; i++)
+                futures.add(executor.submit(new Worker()));
+            new Worker().run();
+        } finally {
+            // the workers still queued in the executor have nothing left to do
+            for (Future<?> future : futures)
+                future.cancel(false);
+        }
+
+        Throwable t = failure;
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        if (t != null)
+            throw new RuntimeException(t);
+
+        return total.get();
+    }
+
+    /**
+     * A range of the elements of an array that remain to be crawled.
+     */
+    private static final class ArrayRange {
+
+        private final Object[] array;
+
+        private final int from;
+
+        private final int to;
+
+        private ArrayRange(Object[] array, int from, int to) {
+            this.array = array;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        private final Deque<Object> stack = new ArrayDeque<Object>();
+
+        private long subtotal;
+
+        public void run() {
+            try {
+                int idleRounds = 0;
+                while (failure == null && outstanding.get() > 0) {
+                    Object[] batch = shared.poll();
+                    if (batch == null) {
+                        idleRounds = backOff(idleRounds);
+                        continue;
+                    }
+                    // the worker now has pending objects and the batch is no longer in the queue
+                    idleRounds = 0;
+                    crawl(batch);
+                }
+            } catch (Throwable t) {
+                failure = t;
+            }
+        }
+
+        /**
+         * Crawls the objects of the specified batch and all the objects reachable from them, until the worker has
+         * no pending object left.
+         */
+        private void crawl(Object[] batch) {
+            for (Object object : batch)
+                stack.push(object);
+
+            while (true) {
+                int crawled = 0;
+                while (!stack.isEmpty() && failure == null) {
+                    visit(stack.pop());
+                    if (++crawled % SHARE_CHECK_INTERVAL == 0)
+                        share();
+                }
+
+                if (failure != null)
+                    return;
+
+                // take another batch without going idle if there is one
+                batch = shared.poll();
+                if (batch == null) {
+                    total.addAndGet(subtotal);
+                    subtotal = 0;
+                    outstanding.decrementAndGet();
+                    return;
+                }
+                outstanding.decrementAndGet();
+                for (Object object : batch)
+                    stack.push(object);
+            }
+        }
+
+        private void visit(Object current) {
+            if (current instanceof ArrayRange) {
+                ArrayRange range = (ArrayRange) current;
+                meter.addArrayChildren(range.array, range.from, range.to, stack, tracker, NoopMemoryMeterListener.INSTANCE);
+                return;
+            }
+
+            if (count) {
+                subtotal++;
+            } else {
+                subtotal += meter.measure(current);
+            }
+
+            if (current instanceof Object[]) {
+                Object[] array = (Object[]) current;
+                for (int from = 0; from < array.length; from += ARRAY_CHUNK)
+                    stack.push(new ArrayRange(array, from, Math.min(array.length, from + ARRAY_CHUNK)));
+            } else if (!count && current instanceof Buffer && !meter.includeFullBufferSize) {
+                subtotal += OffHeapAccounting.remainingBytes((Buffer) current);
+            } else {
+                Object referent = (meter.ignoreNonStrongReferences && (current instanceof Reference)) ? ((Reference<?>)current).get() : null;
+                meter.addFieldChildren(current, stack, tracker, referent, NoopMemoryMeterListener.INSTANCE);
+            }
+        }
+
+        /**
+         * Moves the oldest half of the pending objects to the shared queue if it is empty.
+         */
+        private void share() {
+            int size = stack.size();
+            if (size < SHARE_THRESHOLD || !shared.isEmpty())
+                return;
+
+            Object[] batch = new Object[size / 2];
+            for (int i = batch.length - 1; i >= 0; i--)
+                batch[i] = stack.pollLast();
+            outstanding.incrementAndGet();
+            shared.add(batch);
+        }
+
+        private int backOff(int idleRounds) {
+            if (idleRounds < 64) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(50000);
+            }
+            return idleRounds + 1;
+        }
+    }
+}
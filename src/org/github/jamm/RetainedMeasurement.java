@@ -0,0 +1,301 @@
+package org.github.jamm;
+
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * A deep measurement computing the retained sizes of the objects reachable from a root: the memory that would be freed
+ * if an object became unreachable, assuming it is only referenced from within the graph.
+ * <p>
+ * The graph is recorded during the traversal in primitive arrays: each object gets an id in discovery order, with its
+ * shallow size, and every reference between two objects of the graph is recorded as an edge, including the references
+ * to objects already visited. The dominator tree of the graph is then computed with the Lengauer-Tarjan algorithm
+ * (simple version, with path compression), and the retained size of an object is the sum of the shallow sizes of the
+ * objects it dominates.
+ */
+final class RetainedMeasurement extends AbstractSet<Object> {
+
+    private static final int ABSENT = -1;
+
+    private final MemoryMeter meter;
+
+    private final IdentityIntMap ids = new IdentityIntMap(ABSENT);
+
+    private Object[] objects = new Object[64];
+
+    private long[] sizes = new long[64];
+
+    private int objectCount;
+
+    private int[] edgeFrom = new int[64];
+
+    private int[] edgeTo = new int[64];
+
+    private int edgeCount;
+
+    /**
+     * The id of the object whose children are being added.
+     */
+    private int parent = ABSENT;
+
+    /**
+     * The objects in DFS preorder, computed by dominators().
+     */
+    private int[] preorder;
+
+    private RetainedMeasurement(MemoryMeter meter) {
+        this.meter = meter;
+    }
+
+    /**
+     * Measures the retained sizes of the objects reachable from the specified root.
+     *
+     * @param meter the meter defining how objects are measured and crawled
+     * @param root the root object, which must not be ignored by the meter
+     * @param n the maximum number of objects immediately dominated by the root to report
+     */
+    static RetainedSizes run(MemoryMeter meter, Object root, int n) {
+        RetainedMeasurement measurement = new RetainedMeasurement(meter);
+        measurement.crawl(root);
+        return measurement.retainedSizes(n);
+    }
+
+    private void crawl(Object root) {
+        add(root);
+        Deque<Object> stack = new ArrayDeque<Object>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Object current = stack.pop();
+            parent = ids.get(current);
+            // sizes may be reallocated while the children are added
+            long size = meter.measureAndAddChildren(current, stack, this, NoopMemoryMeterListener.INSTANCE);
+            sizes[parent] = size;
+        }
+    }
+
+    /**
+     * Records a reference from the object being crawled to the specified object, giving it an id if it has not been
+     * visited yet.
+     *
+     * @return <code>true</code> if the object had not been visited yet
+     */
+    @Override
+    public boolean add(Object o) {
+        int id = ids.get(o);
+        boolean added = id == ABSENT;
+        if (added) {
+            id = objectCount++;
+            if (id == objects.length) {
+                objects = Arrays.copyOf(objects, id * 2);
+                sizes = Arrays.copyOf(sizes, id * 2);
+            }
+            objects[id] = o;
+            ids.put(o, id);
+        }
+
+        if (parent != ABSENT) {
+            if (edgeCount == edgeFrom.length) {
+                edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+                edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+            }
+            edgeFrom[edgeCount] = parent;
+            edgeTo[edgeCount] = id;
+            edgeCount++;
+        }
+        return added;
+    }
+
+    /**
+     * Not supported.
+     */
+    @Override
+    public Iterator<Object> iterator() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int size() {
+        return objectCount;
+    }
+
+    private RetainedSizes retainedSizes(int n) {
+        int[] idom = dominators();
+
+        // an object comes after its immediate dominator in the DFS preorder, so the dominated objects are summed first
+        long[] retained = Arrays.copyOf(sizes, objectCount);
+        for (int i = objectCount - 1; i > 0; i--) {
+            int w = preorder[i];
+            retained[idom[w]] += retained[w];
+        }
+
+        // the root has id 0
+        int dominatedCount = 0;
+        for (int w = 1; w < objectCount; w++) {
+            if (idom[w] == 0)
+                dominatedCount++;
+        }
+        int[] dominated = new int[dominatedCount];
+        dominatedCount = 0;
+        for (int w = 1; w < objectCount; w++) {
+            if (idom[w] == 0)
+                dominated[dominatedCount++] = w;
+        }
+        int[] top = largest(dominated, retained, n);
+
+        Object[] topObjects = new Object[top.length];
+        long[] topRetained = new long[top.length];
+        for (int i = 0; i < top.length; i++) {
+            topObjects[i] = objects[top[i]];
+            topRetained[i] = retained[top[i]];
+        }
+        return new RetainedSizes(retained[0], objectCount, topObjects, topRetained);
+    }
+
+    /**
+     * Returns the ids with the largest retained sizes, by decreasing retained size.
+     */
+    private static int[] largest(int[] ids, long[] retained, int n) {
+        // a partial selection sort, as only a few of the dominated objects are usually requested
+        int count = Math.min(n, ids.length);
+        for (int i = 0; i < count; i++) {
+            int max = i;
+            for (int j = i + 1; j < ids.length; j++) {
+                if (retained[ids[j]] > retained[ids[max]])
+                    max = j;
+            }
+            int tmp = ids[i];
+            ids[i] = ids[max];
+            ids[max] = tmp;
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Computes the immediate dominator of each object with the Lengauer-Tarjan algorithm.
+     *
+     * @return the id of the immediate dominator of each object, -1 for the root
+     */
+    private int[] dominators() {
+        int n = objectCount;
+        int[] successorStart = new int[n + 1];
+        int[] successors = new int[edgeCount];
+        int[] predecessorStart = new int[n + 1];
+        int[] predecessors = new int[edgeCount];
+        toAdjacency(edgeFrom, edgeTo, successorStart, successors);
+        toAdjacency(edgeTo, edgeFrom, predecessorStart, predecessors);
+        edgeFrom = null;
+        edgeTo = null;
+
+        // iterative DFS numbering the objects in preorder
+        int[] dfnum = new int[n];
+        Arrays.fill(dfnum, ABSENT);
+        int[] dfsParent = new int[n];
+        preorder = new int[n];
+        int[] nodeStack = new int[n];
+        int[] edgeStack = new int[n];
+        int depth = 0;
+        int count = 0;
+        nodeStack[0] = 0;
+        edgeStack[0] = successorStart[0];
+        dfnum[0] = count;
+        preorder[count++] = 0;
+        dfsParent[0] = ABSENT;
+        while (depth >= 0) {
+            int v = nodeStack[depth];
+            if (edgeStack[depth] < successorStart[v + 1]) {
+                int w = successors[edgeStack[depth]++];
+                if (dfnum[w] == ABSENT) {
+                    dfnum[w] = count;
+                    preorder[count++] = w;
+                    dfsParent[w] = v;
+                    depth++;
+                    nodeStack[depth] = w;
+                    edgeStack[depth] = successorStart[w];
+                }
+            } else {
+                depth--;
+            }
+        }
+
+        int[] semi = dfnum.clone();
+        int[] label = new int[n];
+        int[] ancestor = new int[n];
+        int[] idom = new int[n];
+        int[] bucketHead = new int[n];
+        int[] bucketNext = new int[n];
+        for (int v = 0; v < n; v++) {
+            label[v] = v;
+            ancestor[v] = ABSENT;
+            bucketHead[v] = ABSENT;
+        }
+
+        // nodeStack is reused as the path of eval's compression
+        int[] path = nodeStack;
+        for (int i = n - 1; i > 0; i--) {
+            int w = preorder[i];
+            for (int e = predecessorStart[w]; e < predecessorStart[w + 1]; e++) {
+                int u = eval(predecessors[e], ancestor, label, semi, path);
+                if (semi[u] < semi[w])
+                    semi[w] = semi[u];
+            }
+            int s = preorder[semi[w]];
+            bucketNext[w] = bucketHead[s];
+            bucketHead[s] = w;
+
+            int p = dfsParent[w];
+            ancestor[w] = p;
+            for (int v = bucketHead[p]; v != ABSENT; v = bucketNext[v]) {
+                int u = eval(v, ancestor, label, semi, path);
+                idom[v] = semi[u] < semi[v] ? u : p;
+            }
+            bucketHead[p] = ABSENT;
+        }
+
+        for (int i = 1; i < n; i++) {
+            int w = preorder[i];
+            if (idom[w] != preorder[semi[w]])
+                idom[w] = idom[idom[w]];
+        }
+        idom[0] = ABSENT;
+        return idom;
+    }
+
+    /**
+     * Returns the vertex with the minimum semi-dominator on the path from v to the root of its tree in the forest, with
+     * path compression. The compression is iterative as the paths can be as long as the graph is deep.
+     */
+    private static int eval(int v, int[] ancestor, int[] label, int[] semi, int[] path) {
+        if (ancestor[v] == ABSENT)
+            return v;
+
+        int length = 0;
+        for (int u = v; ancestor[ancestor[u]] != ABSENT; u = ancestor[u])
+            path[length++] = u;
+
+        while (length > 0) {
+            int u = path[--length];
+            int a = ancestor[u];
+            if (semi[label[a]] < semi[label[u]])
+                label[u] = label[a];
+            ancestor[u] = ancestor[a];
+        }
+        return label[v];
+    }
+
+    /**
+     * Builds the compressed adjacency lists of the specified edges: the targets of the edges from v are
+     * <code>targets[start[v]]</code> to <code>targets[start[v + 1] - 1]</code>.
+     */
+    private void toAdjacency(int[] from, int[] to, int[] start, int[] targets) {
+        for (int e = 0; e < edgeCount; e++)
+            start[from[e] + 1]++;
+        for (int v = 0; v < objectCount; v++)
+            start[v + 1] += start[v];
+        int[] next = Arrays.copyOf(start, objectCount);
+        for (int e = 0; e < edgeCount; e++)
+            targets[next[from[e]]++] = to[e];
+    }
+}
@@ -0,0 +1,92 @@
+package org.github.jamm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of <code>MemoryMeter.measureRetained</code>: the retained size of a root and of the largest objects it
+ * immediately dominates.
+ * <p>
+ * An object dominates another one if every path from the root to the other object goes through it, and the retained
+ * size of an object is the memory usage of all the objects it dominates, including itself: what would be freed if it
+ * was no longer referenced. Only the references within the graph reachable from the root are known, so the retained
+ * sizes assume that no object of the graph is referenced from outside of it.
+ */
+public final class RetainedSizes {
+
+    private final long rootRetainedBytes;
+
+    private final long objectCount;
+
+    private final List<Entry> top;
+
+    RetainedSizes(long rootRetainedBytes, long objectCount, Object[] topObjects, long[] topRetainedBytes) {
+        this.rootRetainedBytes = rootRetainedBytes;
+        this.objectCount = objectCount;
+        List<Entry> entries = new ArrayList<Entry>(topObjects.length);
+        for (int i = 0; i < topObjects.length; i++)
+            entries.add(new Entry(topObjects[i], topRetainedBytes[i]));
+        this.top = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * An object and its retained size.
+     */
+    public static final class Entry {
+
+        private final Object object;
+
+        private final long retainedBytes;
+
+        private Entry(Object object, long retainedBytes) {
+            this.object = object;
+            this.retainedBytes = retainedBytes;
+        }
+
+        /**
+         * @return the object
+         */
+        public Object object() {
+            return object;
+        }
+
+        /**
+         * @return the memory usage of the objects dominated by the object, including itself
+         */
+        public long retainedBytes() {
+            return retainedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[retained=%d]", object.getClass().getName(), retainedBytes);
+        }
+    }
+
+    /**
+     * @return the retained size of the root, which is the memory usage of the whole graph
+     */
+    public long rootRetainedBytes() {
+        return rootRetainedBytes;
+    }
+
+    /**
+     * @return the number of objects reachable from the root, including itself
+     */
+    public long objectCount() {
+        return objectCount;
+    }
+
+    /**
+     * @return the objects immediately dominated by the root with the largest retained sizes, by decreasing retained size
+     */
+    public List<Entry> top() {
+        return top;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RetainedSizes[root=%d, objects=%d, top=%s]", rootRetainedBytes, objectCount, top);
+    }
+}
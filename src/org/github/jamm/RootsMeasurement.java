@@ -0,0 +1,58 @@
+package org.github.jamm;
+
+/**
+ * The result of <code>MemoryMeter.measureDeepAll</code>: the memory usage of several object graphs measured together,
+ * split between the bytes exclusive to each root and the bytes shared by several roots.
+ * <p>
+ * An object is exclusive to a root if it is only reachable from that root, and shared if it is reachable from
+ * several roots. Each object is counted once, so the total is the sum of the exclusive bytes of all the roots plus the
+ * shared bytes.
+ */
+public final class RootsMeasurement {
+
+    private final long[] exclusiveBytes;
+
+    private final long sharedBytes;
+
+    RootsMeasurement(long[] exclusiveBytes, long sharedBytes) {
+        this.exclusiveBytes = exclusiveBytes;
+        this.sharedBytes = sharedBytes;
+    }
+
+    /**
+     * @return the number of roots measured
+     */
+    public int rootCount() {
+        return exclusiveBytes.length;
+    }
+
+    /**
+     * @param rootIndex the index of the root, in the iteration order of the measured collection
+     * @return the memory usage of the objects only reachable from the specified root
+     */
+    public long exclusiveBytes(int rootIndex) {
+        return exclusiveBytes[rootIndex];
+    }
+
+    /**
+     * @return the memory usage of the objects reachable from several roots
+     */
+    public long sharedBytes() {
+        return sharedBytes;
+    }
+
+    /**
+     * @return the memory usage of all the objects reachable from the roots
+     */
+    public long totalBytes() {
+        long total = sharedBytes;
+        for (long bytes : exclusiveBytes)
+            total += bytes;
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RootsMeasurement[roots=%d, shared=%d, total=%d]", rootCount(), sharedBytes, totalBytes());
+    }
+}
@@ -0,0 +1,140 @@
+package org.github.jamm;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * A deep measurement estimating the memory usage of the large arrays of the graph from a sample of their elements.
+ * <p>
+ * The arrays of references with at least <code>minArrayLength</code> elements are measured shallowly, then the graphs
+ * reachable from <code>sampleSize</code> elements chosen at random (without replacement) are measured, and their total
+ * is extrapolated to all the elements. The variance of the extrapolation is estimated from the variance of the sampled
+ * element sizes, with the finite population correction, and the variances of the independently sampled arrays add up.
+ * A sampled array nested in the graph of a sampled element contributes its variance scaled by the extrapolation
+ * factor of the outer array (two-stage sampling).
+ * <p>
+ * As with an exact measurement, an object reachable from several elements is only counted for the first one crawled,
+ * so the elements left out of the sample may keep objects alive that are not accounted for elsewhere.
+ */
+final class SampledMeasurement {
+
+    private final MemoryMeter meter;
+
+    private final int minArrayLength;
+
+    private final int sampleSize;
+
+    private final Set<Object> tracker;
+
+    private final Random random = new Random();
+
+    /**
+     * The memory usage of the objects actually measured.
+     */
+    private long measuredBytes;
+
+    /**
+     * The variance of the estimate accumulated so far.
+     */
+    private double variance;
+
+    private boolean sampled;
+
+    private SampledMeasurement(MemoryMeter meter, int minArrayLength, int sampleSize, Set<Object> tracker) {
+        this.meter = meter;
+        this.minArrayLength = minArrayLength;
+        this.sampleSize = sampleSize;
+        this.tracker = tracker;
+    }
+
+    /**
+     * Estimates the memory usage of the object graph reachable from the specified root.
+     *
+     * @param meter the meter defining how objects are measured and crawled
+     * @param root the root object, which must not be ignored by the meter
+     * @param minArrayLength the minimum length of the arrays to sample
+     * @param sampleSize the number of elements sampled in each of these arrays
+     * @param tracker the tracker of the visited objects
+     */
+    static SizeEstimate run(MemoryMeter meter, Object root, int minArrayLength, int sampleSize, Set<Object> tracker) {
+        SampledMeasurement measurement = new SampledMeasurement(meter, minArrayLength, sampleSize, tracker);
+        tracker.add(root);
+        Deque<Object> stack = new ArrayDeque<Object>();
+        stack.push(root);
+        double estimate = measurement.crawl(stack);
+        return new SizeEstimate(Math.round(estimate),
+                                Math.sqrt(measurement.variance),
+                                measurement.measuredBytes,
+                                !measurement.sampled);
+    }
+
+    /**
+     * Crawls the objects of the stack and all the objects reachable from them.
+     *
+     * @return the estimated memory usage of these objects
+     */
+    private double crawl(Deque<Object> stack) {
+        double total = 0;
+        while (!stack.isEmpty()) {
+            Object current = stack.pop();
+            if (current instanceof Object[] && ((Object[]) current).length >= minArrayLength && ((Object[]) current).length > sampleSize) {
+                long size = meter.measure(current);
+                measuredBytes += size;
+                total += size + estimateElements((Object[]) current);
+            } else {
+                long size = meter.measureAndAddChildren(current, stack, tracker, NoopMemoryMeterListener.INSTANCE);
+                measuredBytes += size;
+                total += size;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the estimated memory usage of the graphs reachable from the elements of the specified array
+     */
+    private double estimateElements(Object[] array) {
+        sampled = true;
+        int length = array.length;
+        double scale = (double) length / sampleSize;
+
+        double sum = 0;
+        double sumOfSquares = 0;
+        double nestedVariance = 0;
+        Deque<Object> stack = new ArrayDeque<Object>();
+        for (int index : sampleIndexes(length)) {
+            double varianceBefore = variance;
+            meter.addArrayChildren(array, index, index + 1, stack, tracker, NoopMemoryMeterListener.INSTANCE);
+            double size = crawl(stack);
+            // the variance of the arrays sampled within the graph of the element is scaled with the element below
+            nestedVariance += variance - varianceBefore;
+            variance = varianceBefore;
+
+            sum += size;
+            sumOfSquares += size * size;
+        }
+
+        double mean = sum / sampleSize;
+        double sampleVariance = Math.max(0, (sumOfSquares - sampleSize * mean * mean) / (sampleSize - 1));
+        double finitePopulationCorrection = 1 - (double) sampleSize / length;
+        variance += (double) length * length * finitePopulationCorrection * sampleVariance / sampleSize
+                  + scale * scale * nestedVariance;
+        return scale * sum;
+    }
+
+    /**
+     * Chooses <code>sampleSize</code> distinct indexes in [0, length) using Floyd's algorithm.
+     */
+    private Set<Integer> sampleIndexes(int length) {
+        Set<Integer> indexes = new HashSet<Integer>(sampleSize * 2);
+        for (int j = length - sampleSize; j < length; j++) {
+            int index = random.nextInt(j + 1);
+            if (!indexes.add(index))
+                indexes.add(j);
+        }
+        return indexes;
+    }
+}
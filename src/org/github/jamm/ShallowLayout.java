@@ -0,0 +1,57 @@
+package org.github.jamm;
+
+/**
+ * The information <code>MemoryMeter.measure</code> needs to measure the instances of a given class.
+ * <p>
+ * It is kept apart from the <code>ClassLayout</code> used to crawl the instances, as it is much cheaper to compute:
+ * measuring an object never requires walking the fields of its class.
+ */
+final class ShallowLayout {
+
+    /**
+     * The offset of the first element if the class is an array class, 0 otherwise.
+     */
+    final int arrayBaseOffset;
+
+    /**
+     * The size of the elements if the class is an array class, 0 otherwise.
+     */
+    final int arrayElementSize;
+
+    /**
+     * The shallow size of the instances of the class, or -1 if it is not known yet (it is never known for arrays,
+     * whose size depends on their length).
+     */
+    volatile long instanceSize = -1;
+
+    ShallowLayout(Class<?> type) {
+        this.arrayBaseOffset = type.isArray() ? UnsafeAccess.arrayBaseOffset(type) : 0;
+        this.arrayElementSize = type.isArray() ? UnsafeAccess.arrayIndexScale(type) : 0;
+    }
+
+    /**
+     * @return the length of the provided array, read without reflection for the arrays of references and the
+     * primitive arrays
+     */
+    static int arrayLength(Object array) {
+        if (array instanceof Object[])
+            return ((Object[]) array).length;
+        if (array instanceof byte[])
+            return ((byte[]) array).length;
+        if (array instanceof long[])
+            return ((long[]) array).length;
+        if (array instanceof int[])
+            return ((int[]) array).length;
+        if (array instanceof char[])
+            return ((char[]) array).length;
+        if (array instanceof short[])
+            return ((short[]) array).length;
+        if (array instanceof double[])
+            return ((double[]) array).length;
+        if (array instanceof float[])
+            return ((float[]) array).length;
+        if (array instanceof boolean[])
+            return ((boolean[]) array).length;
+        throw new IllegalArgumentException(String.format("The object must be an array (was %s).", array.getClass().getName()));
+    }
+}
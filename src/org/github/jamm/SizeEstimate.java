@@ -0,0 +1,69 @@
+package org.github.jamm;
+
+/**
+ * The result of <code>MemoryMeter.measureDeepEstimate</code>: an estimate of the memory usage of an object graph,
+ * extrapolated from samples of the elements of its large arrays, with its 95% confidence interval.
+ */
+public final class SizeEstimate {
+
+    /**
+     * The quantile of the normal distribution for a two-sided 95% confidence interval.
+     */
+    private static final double Z_95 = 1.96;
+
+    private final long estimate;
+
+    private final double standardError;
+
+    private final long measuredBytes;
+
+    private final boolean exact;
+
+    SizeEstimate(long estimate, double standardError, long measuredBytes, boolean exact) {
+        this.estimate = estimate;
+        this.standardError = standardError;
+        this.measuredBytes = measuredBytes;
+        this.exact = exact;
+    }
+
+    /**
+     * @return the estimated memory usage
+     */
+    public long estimate() {
+        return estimate;
+    }
+
+    /**
+     * @return the standard error of the estimate, 0 if no array was sampled
+     */
+    public double standardError() {
+        return standardError;
+    }
+
+    /**
+     * @return the lower bound of the 95% confidence interval, which is never below the memory usage of the objects
+     * actually measured
+     */
+    public long lowerBound() {
+        return Math.max(measuredBytes, estimate - (long) Math.ceil(Z_95 * standardError));
+    }
+
+    /**
+     * @return the upper bound of the 95% confidence interval
+     */
+    public long upperBound() {
+        return estimate + (long) Math.ceil(Z_95 * standardError);
+    }
+
+    /**
+     * @return <code>true</code> if no array was sampled, in which case the estimate is the exact memory usage
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SizeEstimate[%d, 95%% CI %d..%d]", estimate, lowerBound(), upperBound());
+    }
+}
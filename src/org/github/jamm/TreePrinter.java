@@ -58,6 +58,11 @@ final class TreePrinter implements MemoryMeterListener {
         }
     }
 
+    @Override
+    public void elementAdded(Object[] array, int index, Object element) {
+        fieldAdded(array, Integer.toString(index), element);
+    }
+
     @Override
     public void objectMeasured(Object current, long size) {
         ObjectInfo field = mapping.get(current);
@@ -0,0 +1,366 @@
+package org.github.jamm;
+
+import java.lang.reflect.Field;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Crawls the instances of a class whose children are known without walking the reference fields of its
+ * <code>ClassLayout</code>: the primitive arrays, which have no children, the <code>Measurable</code> classes, which
+ * push their children themselves, and the strings, array lists and standard maps (with their nodes), which are most
+ * of the crawled objects in practice and whose known fields are pushed one by one by straight-line code. The handlers
+ * generated by <code>TypeHandlerGenerator</code> are also <code>TypeHandler</code>s.
+ * <p>
+ * The fields of the JDK classes change between JDK versions, so their handlers are registered for each known layout
+ * and only used if the reference fields actually found in the class (after the <code>MemoryMeter</code> filters) are
+ * exactly the known ones. They read the fields with the configured <code>FieldAccess</code>. Any other class, or any
+ * unknown layout, goes through the generic path.
+ */
+abstract class TypeHandler {
+
+    /**
+     * The handler of the primitive arrays, which have no children.
+     */
+    static final TypeHandler NO_CHILDREN = new TypeHandler() {
+        @Override
+        void addChildren(Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+        }
+    };
+
+    /**
+     * The handler of the <code>Measurable</code> classes, which push their children themselves.
+     */
+    static final TypeHandler MEASURABLE = new TypeHandler() {
+        @Override
+        void addChildren(Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+            ((Measurable) current).addChildrenTo(new MeasurementStack(current, stack, tracker, listener));
+        }
+    };
+
+    /**
+     * The classes of the elements of the tables of the standard hash maps. None of them can be ignored, so that the
+     * elements of those tables do not have to be checked one by one.
+     */
+    private static final Set<String> KNOWN_ELEMENTS = new HashSet<String>();
+
+    static {
+        // JDK 7
+        KNOWN_ELEMENTS.add("java.util.HashMap$Entry");
+        // JDK 8 and later
+        KNOWN_ELEMENTS.add("java.util.HashMap$Node");
+        KNOWN_ELEMENTS.add("java.util.concurrent.ConcurrentHashMap$Node");
+    }
+
+    /**
+     * The candidate layouts of each JDK class with a known layout.
+     */
+    private static final Map<String, KnownLayout[]> KNOWN_LAYOUTS = new HashMap<String, KnownLayout[]>();
+
+    static {
+        register("java.lang.String", KnownLayout.STRING);
+        register("java.util.ArrayList", KnownLayout.ARRAY_LIST);
+
+        register("java.util.HashMap", KnownLayout.HASH_MAP);
+        // JDK 7
+        register("java.util.HashMap$Entry", KnownLayout.HASH_MAP_NODE);
+        // JDK 8 and later
+        register("java.util.HashMap$Node", KnownLayout.HASH_MAP_NODE);
+
+        // JDK 8 and later, the segments of JDK 7 go through the generic path
+        register("java.util.concurrent.ConcurrentHashMap", KnownLayout.CONCURRENT_HASH_MAP);
+        register("java.util.concurrent.ConcurrentHashMap$Node", KnownLayout.CONCURRENT_HASH_MAP_NODE);
+
+        register("java.util.TreeMap", KnownLayout.TREE_MAP);
+        register("java.util.TreeMap$Entry", KnownLayout.TREE_MAP_ENTRY);
+
+        register("java.util.concurrent.ConcurrentSkipListMap", KnownLayout.SKIP_LIST_MAP, KnownLayout.SKIP_LIST_MAP_8);
+        register("java.util.concurrent.ConcurrentSkipListMap$Node", KnownLayout.SKIP_LIST_NODE, KnownLayout.SKIP_LIST_NODE_8);
+        register("java.util.concurrent.ConcurrentSkipListMap$Index", KnownLayout.SKIP_LIST_INDEX);
+        // up to JDK 13
+        register("java.util.concurrent.ConcurrentSkipListMap$HeadIndex", KnownLayout.SKIP_LIST_INDEX);
+    }
+
+    private static void register(String className, KnownLayout... layouts) {
+        KNOWN_LAYOUTS.put(className, layouts);
+    }
+
+    /**
+     * Returns the handler of the specified class, if its children are known.
+     *
+     * @param type the class
+     * @param names the names of the reference fields of the class that must be followed
+     * @param fields the fields, only used if they are read through reflection
+     * @param offsets the <code>sun.misc.Unsafe</code> offsets of the fields, or <code>null</code> if they are read
+     * through reflection
+     * @return the handler of the class, or <code>null</code> if it must be crawled through the generic path
+     */
+    static TypeHandler of(Class<?> type, String[] names, Field[] fields, long[] offsets) {
+        if (type.isArray())
+            return type.getComponentType().isPrimitive() ? NO_CHILDREN : null;
+
+        if (Measurable.class.isAssignableFrom(type))
+            return MEASURABLE;
+
+        KnownLayout[] layouts = KNOWN_LAYOUTS.get(type.getName());
+        if (layouts == null)
+            return null;
+
+        for (KnownLayout layout : layouts) {
+            TypeHandler handler = layout.handlerFor(names, fields, offsets);
+            if (handler != null)
+                return handler;
+        }
+        return null;
+    }
+
+    /**
+     * @return <code>true</code> if the specified array class is the table of a standard hash map, whose elements never
+     * have to be ignored
+     */
+    static boolean hasKnownElements(Class<?> type) {
+        return type.isArray() && KNOWN_ELEMENTS.contains(type.getComponentType().getName());
+    }
+
+    /**
+     * Pushes onto the stack the children of the specified object that are accepted by the tracker.
+     */
+    abstract void addChildren(Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener);
+
+    /**
+     * Pushes onto the stack the specified child of an object if it is not null and is accepted by the tracker. This is
+     * also called by the handlers generated by <code>TypeHandlerGenerator</code>.
+     */
+    static void push(Object current, Object child, String name, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+        if (child != null && tracker.add(child)) {
+            stack.push(child);
+            listener.fieldAdded(current, name, child);
+        }
+    }
+
+    /**
+     * The known reference fields of a JDK class, in their declaration order (the subclass first), with the code
+     * pushing them. A field name appears twice if it is declared by both the class and one of its superclasses.
+     */
+    private enum KnownLayout {
+        STRING("value") {
+            @Override
+            void addChildren(KnownFields h, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+                h.push(0, current, stack, tracker, listener);
+            }
+        },
+        ARRAY_LIST("elementData") {
+            @Override
+            void addChildren(KnownFields h, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+                h.push(0, current, stack, tracker, listener);
+            }
+        },
+        HASH_MAP("table", "entrySet", "keySet", "values") {
+            @Override
+            void addChildren(KnownFields h, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+                h.push(0, current, stack, tracker, listener);
+                h.push(1, current, stack, tracker, listener);
+                h.push(2, current, stack, tracker, listener);
+                h.push(3, current, stack, tracker, listener);
+            }
+        },
+        HASH_MAP_NODE("key", "value", "next") {
+            @Override
+            void addChildren(KnownFields h, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+                h.push(0, current, stack, tracker, listener);
+                h.push(1, current, stack, tracker, listener);
+                h.push(2, current, stack, tracker, listener);
+            }
+        },
+        CONCURRENT_HASH_MAP("table", "nextTable", "counterCells", "keySet", "values", "entrySet", "keySet", "values") {
+            @Override
+            void addChildren(KnownFields h, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+                h.push(0, current, stack, tracker, listener);
+                h.push(1, current, stack, tracker, listener);
+                h.push(2, current, stack, tracker, listener);
+                h.push(3, current, stack, tracker, listener);
+                h.push(4, current, stack, tracker, listener);
+                h.push(5, current, stack, tracker, listener);
+                h.push(6, current, stack, tracker, listener);
+                h.push(7, current, stack, tracker, listener);
+            }
+        },
+        CONCURRENT_HASH_MAP_NODE("key", "val", "next") {
+            @Override
+            void addChildren(KnownFields h, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+                h.push(0, current, stack, tracker, listener);
+                h.push(1, current, stack, tracker, listener);
+                h.push(2, current, stack, tracker, listener);
+            }
+        },
+        TREE_MAP("comparator", "root", "entrySet", "navigableKeySet", "descendingMap", "keySet", "values") {
+            @Override
+            void addChildren(KnownFields h, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+                h.push(0, current, stack, tracker, listener);
+                h.push(1, current, stack, tracker, listener);
+                h.push(2, current, stack, tracker, listener);
+                h.push(3, current, stack, tracker, listener);
+                h.push(4, current, stack, tracker, listener);
+                h.push(5, current, stack, tracker, listener);
+                h.push(6, current, stack, tracker, listener);
+            }
+        },
+        TREE_MAP_ENTRY("key", "value", "left", "right", "parent") {
+            @Override
+            void addChildren(KnownFields h, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+                h.push(0, current, stack, tracker, listener);
+                h.push(1, current, stack, tracker, listener);
+                h.push(2, current, stack, tracker, listener);
+                h.push(3, current, stack, tracker, listener);
+                h.push(4, current, stack, tracker, listener);
+            }
+        },
+        // JDK 14 and later
+        SKIP_LIST_MAP("comparator", "head", "adder", "keySet", "values", "entrySet", "descendingMap", "keySet", "values") {
+            @Override
+            void addChildren(KnownFields h, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+                h.push(0, current, stack, tracker, listener);
+                h.push(1, current, stack, tracker, listener);
+                h.push(2, current, stack, tracker, listener);
+                h.push(3, current, stack, tracker, listener);
+                h.push(4, current, stack, tracker, listener);
+                h.push(5, current, stack, tracker, listener);
+                h.push(6, current, stack, tracker, listener);
+                h.push(7, current, stack, tracker, listener);
+                h.push(8, current, stack, tracker, listener);
+            }
+        },
+        // up to JDK 13
+        SKIP_LIST_MAP_8("head", "comparator", "keySet", "entrySet", "values", "descendingMap", "keySet", "values") {
+            @Override
+            void addChildren(KnownFields h, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+                h.push(0, current, stack, tracker, listener);
+                h.push(1, current, stack, tracker, listener);
+                h.push(2, current, stack, tracker, listener);
+                h.push(3, current, stack, tracker, listener);
+                h.push(4, current, stack, tracker, listener);
+                h.push(5, current, stack, tracker, listener);
+                h.push(6, current, stack, tracker, listener);
+                h.push(7, current, stack, tracker, listener);
+            }
+        },
+        // JDK 14 and later
+        SKIP_LIST_NODE("key", "val", "next") {
+            @Override
+            void addChildren(KnownFields h, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+                h.push(0, current, stack, tracker, listener);
+                h.push(1, current, stack, tracker, listener);
+                h.push(2, current, stack, tracker, listener);
+            }
+        },
+        // up to JDK 13
+        SKIP_LIST_NODE_8("key", "value", "next") {
+            @Override
+            void addChildren(KnownFields h, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+                h.push(0, current, stack, tracker, listener);
+                h.push(1, current, stack, tracker, listener);
+                h.push(2, current, stack, tracker, listener);
+            }
+        },
+        SKIP_LIST_INDEX("node", "down", "right") {
+            @Override
+            void addChildren(KnownFields h, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+                h.push(0, current, stack, tracker, listener);
+                h.push(1, current, stack, tracker, listener);
+                h.push(2, current, stack, tracker, listener);
+            }
+        };
+
+        private final String[] fieldNames;
+
+        KnownLayout(String... fieldNames) {
+            this.fieldNames = fieldNames;
+        }
+
+        /**
+         * Pushes the children of the specified object, read by the specified handler.
+         */
+        abstract void addChildren(KnownFields h, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener);
+
+        /**
+         * @return the handler reading the specified fields, or <code>null</code> if they are not exactly the known
+         * fields of this layout
+         */
+        TypeHandler handlerFor(String[] names, Field[] fields, long[] offsets) {
+            if (names.length != fieldNames.length)
+                return null;
+
+            Field[] knownFields = offsets == null ? new Field[fieldNames.length] : null;
+            long[] knownOffsets = offsets == null ? null : new long[fieldNames.length];
+            boolean[] matched = new boolean[names.length];
+            for (int i = 0; i < fieldNames.length; i++) {
+                int j = 0;
+                // the fields of the class come before those of its superclasses, as the known names do
+                while (j < names.length && (matched[j] || !names[j].equals(fieldNames[i])))
+                    j++;
+                if (j == names.length)
+                    return null;
+                matched[j] = true;
+                if (offsets == null)
+                    knownFields[i] = fields[j];
+                else
+                    knownOffsets[i] = offsets[j];
+            }
+            return new KnownFields(this, knownFields, knownOffsets);
+        }
+    }
+
+    /**
+     * The handler of a JDK class with a known layout, reading its fields in the order of the layout with
+     * <code>sun.misc.Unsafe</code> or through reflection.
+     */
+    private static final class KnownFields extends TypeHandler {
+
+        private final KnownLayout layout;
+
+        /**
+         * The fields, or <code>null</code> if they are read at their offsets.
+         */
+        private final Field[] fields;
+
+        /**
+         * The <code>sun.misc.Unsafe</code> offsets of the fields, or <code>null</code> if they are read through
+         * reflection.
+         */
+        private final long[] offsets;
+
+        private KnownFields(KnownLayout layout, Field[] fields, long[] offsets) {
+            if (offsets == null) {
+                for (Field field : fields)
+                    field.setAccessible(true);
+            }
+            this.layout = layout;
+            this.fields = fields;
+            this.offsets = offsets;
+        }
+
+        @Override
+        void addChildren(Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+            layout.addChildren(this, current, stack, tracker, listener);
+        }
+
+        /**
+         * Pushes the value of the specified known field of the object, if it is accepted by the tracker.
+         */
+        void push(int index, Object current, Deque<Object> stack, Set<Object> tracker, MemoryMeterListener listener) {
+            Object child;
+            if (offsets != null) {
+                child = UnsafeAccess.unsafe.getObject(current, offsets[index]);
+            } else {
+                try {
+                    child = fields[index].get(current);
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            push(current, child, layout.fieldNames[index], stack, tracker, listener);
+        }
+    }
+}
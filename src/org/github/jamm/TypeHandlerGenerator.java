@@ -0,0 +1,299 @@
+package org.github.jamm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Generates, for a given class, a <code>TypeHandler</code> whose code reads each reference field of the class at its
+ * constant <code>sun.misc.Unsafe</code> offset and pushes the non-null children, so that crawling its instances
+ * runs straight-line code that the JIT compiles entirely, without reflection nor loops over the fields.
+ * <p>
+ * The handlers are defined with <code>MethodHandles.Lookup.defineHiddenClass</code>, so that they are unloaded with
+ * the meter using them. Before JDK 15, the handlers could only be defined as normal classes, which are never unloaded
+ * and would pile up with each meter and class: no handler is generated and the fields are read by the generic path,
+ * as they are without <code>sun.misc.Unsafe</code>.
+ * <p>
+ * The generated code of a handler for the fields <code>a</code> and <code>b</code> is equivalent to:
+ * <pre>
+ * void addChildren(Object current, Deque&lt;Object&gt; stack, Set&lt;Object&gt; tracker, MemoryMeterListener listener) {
+ *     TypeHandler.push(current, UnsafeAccess.unsafe.getObject(current, 12L), "a", stack, tracker, listener);
+ *     TypeHandler.push(current, UnsafeAccess.unsafe.getObject(current, 16L), "b", stack, tracker, listener);
+ * }
+ * </pre>
+ */
+final class TypeHandlerGenerator {
+
+    /**
+     * The maximum number of fields of a generated handler, so that its code stays below the 64KB limit of a method.
+     */
+    private static final int MAX_FIELDS = 1000;
+
+    private static final String CLASS_NAME = "org/github/jamm/GeneratedTypeHandler";
+
+    private static final String ADD_CHILDREN_DESCRIPTOR = "(Ljava/lang/Object;Ljava/util/Deque;Ljava/util/Set;Lorg/github/jamm/MemoryMeterListener;)V";
+
+    private static final String PUSH_DESCRIPTOR = "(Ljava/lang/Object;Ljava/lang/Object;Ljava/lang/String;Ljava/util/Deque;Ljava/util/Set;Lorg/github/jamm/MemoryMeterListener;)V";
+
+    /**
+     * The lookup defining the handlers, or <code>null</code> if they cannot be defined on this JVM.
+     */
+    private static final Object LOOKUP;
+
+    /**
+     * <code>MethodHandles.Lookup.defineHiddenClass</code>, or <code>null</code> if the handlers cannot be defined.
+     */
+    private static final Method DEFINE_HIDDEN_CLASS;
+
+    /**
+     * An empty array of <code>MethodHandles.Lookup.ClassOption</code>.
+     */
+    private static final Object NO_OPTIONS;
+
+    static {
+        Object lookup = null;
+        Method defineHiddenClass = null;
+        Object noOptions = null;
+        if (UnsafeAccess.hasUnsafe() && HotSpotFieldLayout.javaVersion() >= 15) {
+            try {
+                // java.lang.invoke is not part of the Java 6 API, the lookup of this class is obtained through reflection
+                lookup = Class.forName("java.lang.invoke.MethodHandles").getMethod("lookup").invoke(null);
+                Class<?> classOption = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+                noOptions = Array.newInstance(classOption, 0);
+                defineHiddenClass = lookup.getClass().getMethod("defineHiddenClass", byte[].class, boolean.class, noOptions.getClass());
+            } catch (Exception e) {
+                lookup = null;
+                defineHiddenClass = null;
+            } catch (LinkageError e) {
+                lookup = null;
+                defineHiddenClass = null;
+            }
+        }
+        LOOKUP = lookup;
+        DEFINE_HIDDEN_CLASS = defineHiddenClass;
+        NO_OPTIONS = noOptions;
+    }
+
+    private TypeHandlerGenerator() {
+    }
+
+    /**
+     * @return <code>true</code> if handlers can be generated on this JVM
+     */
+    static boolean isAvailable() {
+        return LOOKUP != null;
+    }
+
+    /**
+     * Generates the handler of the specified class.
+     *
+     * @param type the class
+     * @param names the names of the reference fields of the class that must be followed
+     * @param offsets the <code>sun.misc.Unsafe</code> offsets of the fields
+     * @return the handler of the class, or <code>null</code> if it must be crawled through the generic path
+     */
+    static TypeHandler generate(Class<?> type, String[] names, long[] offsets) {
+        if (LOOKUP == null || offsets == null || names.length == 0 || names.length > MAX_FIELDS)
+            return null;
+
+        try {
+            byte[] bytes = classBytes(CLASS_NAME, names, offsets);
+            Object lookup = DEFINE_HIDDEN_CLASS.invoke(LOOKUP, bytes, Boolean.FALSE, NO_OPTIONS);
+            Class<?> handlerClass = (Class<?>) lookup.getClass().getMethod("lookupClass").invoke(lookup);
+            return (TypeHandler) handlerClass.getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            // e.g. if the class file is rejected, the generic path is as correct if not as fast
+            return null;
+        }
+    }
+
+    /**
+     * @return the class file of a handler reading the specified fields
+     */
+    private static byte[] classBytes(String className, String[] names, long[] offsets) throws IOException {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classInfo(className);
+        int superClass = pool.classInfo("org/github/jamm/TypeHandler");
+        int superConstructor = pool.methodRef(superClass, "<init>", "()V");
+        int unsafe = pool.fieldRef(pool.classInfo("org/github/jamm/UnsafeAccess"), "unsafe", "Lsun/misc/Unsafe;");
+        int getObject = pool.methodRef(pool.classInfo("sun/misc/Unsafe"), "getObject", "(Ljava/lang/Object;J)Ljava/lang/Object;");
+        int push = pool.methodRef(superClass, "push", PUSH_DESCRIPTOR);
+        int code = pool.utf8("Code");
+        int constructorName = pool.utf8("<init>");
+        int constructorDescriptor = pool.utf8("()V");
+        int addChildrenName = pool.utf8("addChildren");
+        int addChildrenDescriptor = pool.utf8(ADD_CHILDREN_DESCRIPTOR);
+
+        ByteArrayOutputStream addChildrenBytes = new ByteArrayOutputStream();
+        DataOutputStream addChildren = new DataOutputStream(addChildrenBytes);
+        for (int i = 0; i < names.length; i++) {
+            addChildren.writeByte(0x2B);                            // aload_1
+            addChildren.writeByte(0xB2);                            // getstatic UnsafeAccess.unsafe
+            addChildren.writeShort(unsafe);
+            addChildren.writeByte(0x2B);                            // aload_1
+            addChildren.writeByte(0x14);                            // ldc2_w offset
+            addChildren.writeShort(pool.longInfo(offsets[i]));
+            addChildren.writeByte(0xB6);                            // invokevirtual Unsafe.getObject
+            addChildren.writeShort(getObject);
+            addChildren.writeByte(0x13);                            // ldc_w name
+            addChildren.writeShort(pool.string(names[i]));
+            addChildren.writeByte(0x2C);                            // aload_2
+            addChildren.writeByte(0x2D);                            // aload_3
+            addChildren.writeByte(0x19);                            // aload 4
+            addChildren.writeByte(4);
+            addChildren.writeByte(0xB8);                            // invokestatic TypeHandler.push
+            addChildren.writeShort(push);
+        }
+        addChildren.writeByte(0xB1);                                // return
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(50);
+        pool.writeTo(out);
+        out.writeShort(0x0030);                                     // ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(0);                                          // interfaces
+        out.writeShort(0);                                          // fields
+        out.writeShort(2);                                          // methods
+
+        out.writeShort(0x0001);                                     // public
+        out.writeShort(constructorName);
+        out.writeShort(constructorDescriptor);
+        writeCode(out, code, 1, 1, new byte[] { 0x2A,                                   // aload_0
+                                                (byte) 0xB7,                            // invokespecial TypeHandler.<init>
+                                                (byte) (superConstructor >> 8),
+                                                (byte) superConstructor,
+                                                (byte) 0xB1 });                         // return
+
+        out.writeShort(0);                                          // package-private, as the overridden method
+        out.writeShort(addChildrenName);
+        out.writeShort(addChildrenDescriptor);
+        writeCode(out, code, 6, 5, addChildrenBytes.toByteArray());
+
+        out.writeShort(0);                                          // attributes
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a method with the specified code, which has no branches and then needs no stack map frames.
+     */
+    private static void writeCode(DataOutputStream out, int code, int maxStack, int maxLocals, byte[] bytecode) throws IOException {
+        out.writeShort(1);                                          // attributes
+        out.writeShort(code);
+        out.writeInt(12 + bytecode.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytecode.length);
+        out.write(bytecode);
+        out.writeShort(0);                                          // exception table
+        out.writeShort(0);                                          // attributes
+    }
+
+    /**
+     * The constant pool of a generated class, each constant being only added once.
+     */
+    private static final class ConstantPool {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+        /**
+         * The index of the next constant, the first one being 1.
+         */
+        private int next = 1;
+
+        int utf8(String value) throws IOException {
+            Integer index = indexes.get("utf8 " + value);
+            if (index != null)
+                return index;
+            out.writeByte(1);
+            out.writeUTF(value);
+            return add("utf8 " + value, 1);
+        }
+
+        int classInfo(String name) throws IOException {
+            Integer index = indexes.get("class " + name);
+            if (index != null)
+                return index;
+            int nameIndex = utf8(name);
+            out.writeByte(7);
+            out.writeShort(nameIndex);
+            return add("class " + name, 1);
+        }
+
+        int string(String value) throws IOException {
+            Integer index = indexes.get("string " + value);
+            if (index != null)
+                return index;
+            int valueIndex = utf8(value);
+            out.writeByte(8);
+            out.writeShort(valueIndex);
+            return add("string " + value, 1);
+        }
+
+        int longInfo(long value) throws IOException {
+            Integer index = indexes.get("long " + value);
+            if (index != null)
+                return index;
+            out.writeByte(5);
+            out.writeLong(value);
+            // a long takes two entries
+            return add("long " + value, 2);
+        }
+
+        int fieldRef(int owner, String name, String descriptor) throws IOException {
+            return memberRef(9, owner, name, descriptor);
+        }
+
+        int methodRef(int owner, String name, String descriptor) throws IOException {
+            return memberRef(10, owner, name, descriptor);
+        }
+
+        private int memberRef(int tag, int owner, String name, String descriptor) throws IOException {
+            String key = "member " + tag + ' ' + owner + ' ' + name + ' ' + descriptor;
+            Integer index = indexes.get(key);
+            if (index != null)
+                return index;
+            int nameAndType = nameAndType(name, descriptor);
+            out.writeByte(tag);
+            out.writeShort(owner);
+            out.writeShort(nameAndType);
+            return add(key, 1);
+        }
+
+        private int nameAndType(String name, String descriptor) throws IOException {
+            String key = "nameAndType " + name + ' ' + descriptor;
+            Integer index = indexes.get(key);
+            if (index != null)
+                return index;
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            out.writeByte(12);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            return add(key, 1);
+        }
+
+        private int add(String key, int size) {
+            int index = next;
+            indexes.put(key, index);
+            next += size;
+            return index;
+        }
+
+        void writeTo(DataOutputStream dest) throws IOException {
+            dest.writeShort(next);
+            dest.write(bytes.toByteArray());
+        }
+    }
+}
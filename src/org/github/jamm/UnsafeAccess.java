@@ -0,0 +1,159 @@
+package org.github.jamm;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import sun.misc.Unsafe;
+
+/**
+ * Holds the <code>sun.misc.Unsafe</code> instance used to read the fields and the array layouts, and to guess the
+ * sizes of the objects, apart from <code>MemoryLayoutSpecification</code>, so that doing so does not initialize the
+ * memory layout specification. The specification reads the flags of the running JVM through its management beans,
+ * which only the meters guessing the sizes from it should pay for: the object header and reference sizes are read here
+ * from <code>sun.misc.Unsafe</code> instead, and the object alignment from the command line.
+ */
+final class UnsafeAccess {
+
+    /**
+     * The <code>sun.misc.Unsafe</code> instance, or <code>null</code> if it could not be obtained.
+     */
+    static final Unsafe unsafe;
+    static
+    {
+        Unsafe tryGetUnsafe;
+        try {
+            Field field = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            tryGetUnsafe = (sun.misc.Unsafe) field.get(null);
+        } catch (Exception e) {
+            tryGetUnsafe = null;
+        }
+        unsafe = tryGetUnsafe;
+    }
+
+    private UnsafeAccess() {
+    }
+
+    /**
+     * A class whose single field is laid out right after the object header.
+     */
+    @SuppressWarnings("unused")
+    private static final class HeaderProbe {
+        private byte value;
+    }
+
+    /**
+     * The object layout given by <code>sun.misc.Unsafe</code>, computed when the first size is guessed from it.
+     */
+    private static final class Layout {
+
+        private static final long OBJECT_HEADER_SIZE;
+        static {
+            try {
+                OBJECT_HEADER_SIZE = unsafe.objectFieldOffset(HeaderProbe.class.getDeclaredField("value"));
+            } catch (NoSuchFieldException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static final int REFERENCE_SIZE = unsafe.arrayIndexScale(Object[].class);
+
+        private static final int OBJECT_ALIGNMENT = objectAlignment();
+    }
+
+    /**
+     * @return <code>true</code> if <code>sun.misc.Unsafe</code> could be obtained
+     */
+    static boolean hasUnsafe() {
+        return unsafe != null;
+    }
+
+    /**
+     * @return the sun.misc.Unsafe offsets of the provided instance fields, or null if the offset of one of them
+     * cannot be obtained (e.g. for the fields of hidden classes)
+     */
+    static long[] offsetsOf(Field[] fields) {
+        long[] offsets = new long[fields.length];
+        try {
+            for (int i = 0; i < fields.length; i++)
+                offsets[i] = unsafe.objectFieldOffset(fields[i]);
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+        return offsets;
+    }
+
+    /**
+     * @return the offset of the first element of the arrays of the provided class, given by sun.misc.Unsafe if
+     * available, or else by the memory layout specification
+     */
+    static int arrayBaseOffset(Class<?> type) {
+        return unsafe != null ? unsafe.arrayBaseOffset(type) : MemoryLayoutSpecification.SPEC.getArrayHeaderSize();
+    }
+
+    /**
+     * @return the size of the elements of the arrays of the provided class, given by sun.misc.Unsafe if available,
+     * or else by the memory layout specification
+     */
+    static int arrayIndexScale(Class<?> type) {
+        return unsafe != null ? unsafe.arrayIndexScale(type) : MemoryLayoutSpecification.sizeOfField(type.getComponentType());
+    }
+
+    /**
+     * Guesses the shallow size of the instances of the provided class from the maximum offset of their fields, given
+     * by sun.misc.Unsafe. The fields of a subclass may be allocated in the gaps left by its superclasses, so all of
+     * them are considered.
+     */
+    static long sizeOfInstance(Class<?> type) {
+        long size = Layout.OBJECT_HEADER_SIZE;
+        for (; type != null; type = type.getSuperclass()) {
+            for (Field f : type.getDeclaredFields()) {
+                if (!Modifier.isStatic(f.getModifiers()))
+                    size = Math.max(size, unsafe.objectFieldOffset(f) + sizeOfField(f.getType()));
+            }
+        }
+        return roundTo(size, Layout.OBJECT_ALIGNMENT);
+    }
+
+    /**
+     * @return the size of an array of the provided length, given the offset of its first element and the size of its
+     * elements
+     */
+    static long sizeOfArray(int baseOffset, int length, long elementSize) {
+        return roundTo(baseOffset + length * elementSize, Layout.OBJECT_ALIGNMENT);
+    }
+
+    private static int sizeOfField(Class<?> type) {
+        if (!type.isPrimitive())
+            return Layout.REFERENCE_SIZE;
+        if (type == long.class || type == double.class)
+            return 8;
+        if (type == int.class || type == float.class)
+            return 4;
+        if (type == char.class || type == short.class)
+            return 2;
+        return 1;
+    }
+
+    /**
+     * @return the alignment of the objects, given by <code>-XX:ObjectAlignmentInBytes</code> on the command line, 8
+     * otherwise
+     */
+    static int objectAlignment() {
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith("-XX:ObjectAlignmentInBytes=")) {
+                try {
+                    return Integer.parseInt(arg.substring("-XX:ObjectAlignmentInBytes=".length()));
+                } catch (NumberFormatException e) {
+                    // ignored, as the JVM would not have started
+                }
+            }
+        }
+        return 8;
+    }
+
+    private static long roundTo(long x, int multiple) {
+        return ((x + multiple - 1) / multiple) * multiple;
+    }
+}
@@ -59,10 +59,33 @@ public class GuessTest {
         Assert.assertEquals("Not all guesses matched the instrumented values. See output for details.", 0, failures);
     }
 
+    @Test
+    public void testSpecMatchesVmOptions() {
+        MemoryLayoutSpecification spec = MemoryLayoutSpecification.SPEC;
+        String compressedOops = MemoryLayoutSpecification.vmOption("UseCompressedOops");
+        Assume.assumeNotNull(compressedOops);
+        Assert.assertEquals(Boolean.parseBoolean(compressedOops) ? 4 : 8, spec.getReferenceSize());
+        Assert.assertEquals(Integer.parseInt(MemoryLayoutSpecification.vmOption("ObjectAlignmentInBytes")), spec.getObjectPadding());
+        Assert.assertEquals(MemoryLayoutSpecification.sizeOfInstance(Object.class), new MemoryMeter().measure(new Object()));
+        if (MemoryLayoutSpecification.hasUnsafe()) {
+            Assert.assertEquals(MemoryLayoutSpecification.unsafe.arrayIndexScale(Object[].class), spec.getReferenceSize());
+            Assert.assertEquals(MemoryLayoutSpecification.unsafe.arrayBaseOffset(int[].class), spec.getArrayHeaderSize());
+        }
+    }
+
     @Test
     public void testProblemClasses() throws InterruptedException, ExecutionException, IOException, IllegalAccessException, InstantiationException {
+        testProblemClasses(MemoryMeter.Guess.ALWAYS_UNSAFE);
+    }
+
+    @Test
+    public void testProblemClassesWithSpec() throws InterruptedException, ExecutionException, IOException, IllegalAccessException, InstantiationException {
+        testProblemClasses(MemoryMeter.Guess.ALWAYS_SPEC);
+    }
+
+    private void testProblemClasses(MemoryMeter.Guess guessing) throws InterruptedException, ExecutionException, IOException, IllegalAccessException, InstantiationException {
         final MemoryMeter instrument = new MemoryMeter();
-        final MemoryMeter guess = new MemoryMeter().withGuessing(MemoryMeter.Guess.ALWAYS_UNSAFE);
+        final MemoryMeter guess = new MemoryMeter().withGuessing(guessing);
         Assert.assertTrue("MemoryMeter not initialised", MemoryMeter.hasInstrumentation());
         List<Def> defs = new ArrayList<Def>();
         defs.add(Def.parse("{long*1}->{float*1}"));
@@ -70,6 +93,9 @@ public class GuessTest {
         defs.add(Def.parse("{long*1}->{byte*7}"));
         defs.add(Def.parse("{long*1}->{byte*9}"));
         defs.add(Def.parse("{long*1}->{float*1}->{long*1}->{float*1}"));
+        defs.add(Def.parse("{byte*1}->{long*1 short*1 Object*1}"));
+        defs.add(Def.parse("{int*1 byte*1}->{short*1}->{long*2 byte*2}"));
+        defs.add(Def.parse("{Object*3}->{double*1 char*1 boolean*3}"));
         final List<GeneratedClass> classes = compile(defs);
         int failures = 0;
         for (final GeneratedClass clazz : classes) {
@@ -86,9 +112,18 @@ public class GuessTest {
 
     @Test
     public void testRandomClasses() throws InterruptedException, ExecutionException {
+        testRandomClasses(MemoryMeter.Guess.ALWAYS_UNSAFE);
+    }
+
+    @Test
+    public void testRandomClassesWithSpec() throws InterruptedException, ExecutionException {
+        testRandomClasses(MemoryMeter.Guess.ALWAYS_SPEC);
+    }
+
+    private void testRandomClasses(MemoryMeter.Guess guessing) throws InterruptedException, ExecutionException {
         final int testsPerCPU = 100;
         final MemoryMeter instrument = new MemoryMeter();
-        final MemoryMeter guess = new MemoryMeter().withGuessing(MemoryMeter.Guess.ALWAYS_UNSAFE);
+        final MemoryMeter guess = new MemoryMeter().withGuessing(guessing);
         Assert.assertTrue("MemoryMeter not initialised", MemoryMeter.hasInstrumentation());
         final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
         for (int i = 0 ; i < Runtime.getRuntime().availableProcessors() ; i++) {
@@ -118,8 +153,17 @@ public class GuessTest {
 
     @Test
     public void testRandomArrays() throws InterruptedException, ExecutionException {
+        testRandomArrays(MemoryMeter.Guess.ALWAYS_UNSAFE);
+    }
+
+    @Test
+    public void testRandomArraysWithSpec() throws InterruptedException, ExecutionException {
+        testRandomArrays(MemoryMeter.Guess.ALWAYS_SPEC);
+    }
+
+    private void testRandomArrays(MemoryMeter.Guess guessing) throws InterruptedException, ExecutionException {
         final MemoryMeter instrument = new MemoryMeter();
-        final MemoryMeter guess = new MemoryMeter().withGuessing(MemoryMeter.Guess.ALWAYS_UNSAFE);
+        final MemoryMeter guess = new MemoryMeter().withGuessing(guessing);
         Assert.assertTrue("MemoryMeter not initialised", MemoryMeter.hasInstrumentation());
         final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
         for (int i = 0 ; i < 10000 ; i++) {
@@ -129,7 +173,7 @@ public class GuessTest {
                     Object obj = Array.newInstance(TYPES[rnd.nextInt(TYPES.length)].clazz, rnd.nextInt(1000));
                     long instrumented = instrument.measure(obj);
                     long guessed = guess.measure(obj);
-                    if (instrumented != guessed) {
+                    if (instrumented != guessed || (MemoryLayoutSpecification.hasUnsafe() && instrumented != MemoryLayoutSpecification.sizeOfWithUnsafe(obj))) {
                         System.err.println(String.format("%s of length %d. Guessed %d, instrumented %d", obj.getClass(), Array.getLength(obj), guessed, instrumented));
                         return Boolean.FALSE;
                     }
@@ -0,0 +1,57 @@
+package org.github.jamm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class IdentityHashSetTest {
+
+    @Test
+    public void testAddIfAbsent() {
+        IdentityHashSet<Object> set = new IdentityHashSet<Object>(0, 0.75f);
+        Set<Object> expected = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+        Object[] objects = new Object[10000];
+        for (int i = 0; i < objects.length; i++) {
+            // equal but not identical objects must be distinct elements
+            objects[i] = new String("element");
+            assertTrue(set.add(objects[i]));
+            assertFalse(set.add(objects[i]));
+            expected.add(objects[i]);
+        }
+
+        assertEquals(objects.length, set.size());
+        for (Object object : objects)
+            assertTrue(set.contains(object));
+        assertFalse(set.contains(new String("element")));
+        assertFalse(set.contains(null));
+        assertEquals(expected, set);
+
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(objects[0]));
+    }
+
+    @Test
+    public void testAsTracker() {
+        MemoryMeter meter = new MemoryMeter();
+        MemoryMeter presized = meter.withTrackerProvider(IdentityHashSet.<Object>provider(1000000, 0.25f));
+
+        Object[] objects = new Object[1000];
+        for (int i = 0; i < objects.length; i++)
+            objects[i] = i % 2 == 0 ? objects : new Object[] { objects };
+
+        assertEquals(meter.measureDeep(objects), presized.measureDeep(objects));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLoadFactor() {
+        new IdentityHashSet<Object>(10, 1f);
+    }
+}
@@ -0,0 +1,42 @@
+package org.github.jamm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IdentityIntMapTest {
+
+    @Test
+    public void testPutAndRemove() {
+        IdentityIntMap map = new IdentityIntMap(-1);
+        Map<Object, Integer> expected = new IdentityHashMap<Object, Integer>();
+
+        Object[] objects = new Object[10000];
+        for (int i = 0; i < objects.length; i++)
+            objects[i] = new String("key");
+
+        // interleaves the puts and the removals so that the probe sequences go through the removed slots
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            Object key = objects[random.nextInt(objects.length)];
+            if (random.nextBoolean()) {
+                map.put(key, i);
+                expected.put(key, i);
+            } else {
+                Integer value = expected.remove(key);
+                assertEquals(value == null ? -1 : value, map.remove(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (Object object : objects) {
+            Integer value = expected.get(object);
+            assertEquals(value == null ? -1 : value, map.get(object));
+        }
+        assertEquals(-1, map.get(new String("key")));
+    }
+}
@@ -2,18 +2,48 @@ package org.github.jamm;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeThat;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.ref.SoftReference;
+import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -488,6 +518,48 @@ public class MemoryMeterTest
         assertEquals(BYTEBUFFER_SIZE, m2.measureDeep(emptyOne));
     }
 
+    @Test
+    public void testMeasureDeepWithOffHeap() throws IOException {
+        // the cleaners of the direct buffers cannot be read through reflection on recent JDKs, and their referents
+        // are the other direct buffers of the JVM
+        MemoryMeter meter = new MemoryMeter().withFieldAccess(MemoryMeter.FieldAccess.BEST).ignoreNonStrongReferences();
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(1024);
+        ByteBuffer slice = ((ByteBuffer) direct.duplicate().position(100)).slice();
+        ByteBuffer heap = ByteBuffer.allocate(64);
+        Object[] graph = { direct,
+                           slice,
+                           direct.duplicate(),
+                           slice.asLongBuffer(),
+                           ByteBuffer.allocateDirect(16).slice(),
+                           heap,
+                           heap.slice(),
+                           heap.asLongBuffer() };
+
+        OffHeapMeasurement measurement = meter.measureDeepWithOffHeap(graph);
+        assertEquals(meter.measureDeep(graph), measurement.heapBytes());
+        assertEquals(1024 + 16, measurement.nativeBytes());
+        assertEquals(0, measurement.mappedBytes());
+        assertEquals(2, measurement.allocations());
+        assertEquals(0, meter.measureDeepWithOffHeap(heap).nativeBytes());
+
+        File file = File.createTempFile("jamm", ".bin");
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 4096);
+            measurement = meter.measureDeepWithOffHeap(new Object[] { mapped, mapped.slice(), direct });
+            assertEquals(4096 + 1024, measurement.nativeBytes());
+            assertEquals(4096, measurement.mappedBytes());
+        } finally {
+            raf.close();
+        }
+
+        // the bytes remaining in any type of buffer are counted when omitting the shared buffer overhead
+        LongBuffer longs = LongBuffer.allocate(4);
+        assertEquals(meter.measure(longs) + 4 * 8, meter.omitSharedBufferOverhead().measureDeep(longs));
+    }
+
     @Test
     public void testCycle() throws Exception {
         MemoryMeter meter = new MemoryMeter();
@@ -546,6 +618,789 @@ public class MemoryMeterTest
         assertEquals(objectSize(0, 1, 0, 0, 1) * 100001, meter.measureDeep(root));
     }
 
+    @Test
+    public void testSameClassCrawledTwice() {
+        MemoryMeter meter = new MemoryMeter();
+
+        // the second measurement reuses the layout computed for the first one
+        Recursive leaf = new Recursive();
+        Recursive parent = new Recursive();
+        parent.child = leaf;
+        assertEquals(objectSize(0, 1, 0, 0, 1), meter.measureDeep(leaf));
+        assertEquals(objectSize(0, 1, 0, 0, 1) * 2, meter.measureDeep(parent));
+        assertEquals(objectSize(0, 1, 0, 0, 1), meter.measureDeep(leaf));
+    }
+
+    @Test
+    public void testUnsafeFieldAccess() {
+        MemoryMeter reflection = new MemoryMeter();
+        MemoryMeter unsafe = reflection.withFieldAccess(MemoryMeter.FieldAccess.BEST);
+
+        Recursive root = new Recursive();
+        root.child = new Recursive();
+        root.child.child = root;
+        assertEquals(reflection.measureDeep(root), unsafe.measureDeep(root));
+        assertEquals(reflection.countChildren(root), unsafe.countChildren(root));
+
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i < 100; i++)
+            map.put(Integer.toString(i), new WithoutAnnotationField("value" + i));
+        assertEquals(reflection.measureDeep(map), unsafe.measureDeep(map));
+        assertEquals(reflection.countChildren(map), unsafe.countChildren(map));
+    }
+
+    @Test
+    public void testGeneratedFieldAccess() throws Exception {
+        Field child = Recursive.class.getDeclaredField("child");
+        TypeHandler handler = TypeHandlerGenerator.generate(Recursive.class,
+                                                            new String[] { "child" },
+                                                            UnsafeAccess.offsetsOf(new Field[] { child }));
+        assertEquals(TypeHandlerGenerator.isAvailable(), handler != null);
+        // the handlers are only generated as hidden classes, which can be unloaded
+        assertEquals(UnsafeAccess.hasUnsafe() && HotSpotFieldLayout.javaVersion() >= 15, TypeHandlerGenerator.isAvailable());
+
+        Recursive root = new Recursive();
+        root.child = new Recursive();
+        root.child.child = root;
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i < 100; i++)
+            map.put(Integer.toString(i), new WithoutAnnotationField("value" + i));
+        Object[] graph = { root, map, new WithoutAnnotationField(null), new ReentrantReadWriteLock() };
+
+        StringWriter reflection = new StringWriter();
+        StringWriter generated = new StringWriter();
+        MemoryMeter meter = new MemoryMeter().withFieldAccess(MemoryMeter.FieldAccess.GENERATED);
+        assertEquals(new MemoryMeter().enableFoldedStacks(reflection, 10).measureDeep(graph),
+                     meter.enableFoldedStacks(generated, 10).measureDeep(graph));
+        assertEquals(reflection.toString(), generated.toString());
+
+        // the handlers are only generated when an instance of the class is crawled, not when it is measured
+        meter.measure(root);
+        assertFalse(meter.layoutOf(Recursive.class).isInitialized());
+        assertEquals(new MemoryMeter().countChildren(graph), meter.countChildren(graph));
+        ClassLayout layout = meter.layoutOf(Recursive.class);
+        assertTrue(layout.isInitialized());
+        if (TypeHandlerGenerator.isAvailable()) {
+            Class<?> handlerClass = layout.handler().getClass();
+            assertTrue(handlerClass.getName(), handlerClass.getName().startsWith("org.github.jamm.GeneratedTypeHandler"));
+            assertEquals(Boolean.TRUE, Class.class.getMethod("isHidden").invoke(handlerClass));
+        }
+    }
+
+    @Test
+    public void testTypeHandlers() throws Exception {
+        MemoryMeter meter = new MemoryMeter();
+
+        assertSame(TypeHandler.NO_CHILDREN, TypeHandler.of(long[].class, new String[0], new Field[0], null));
+        assertSame(TypeHandler.MEASURABLE, typeHandler(Trie.class, referenceFields(Trie.class), false));
+        assertNull(TypeHandler.of(Object[].class, new String[0], new Field[0], null));
+        assertNull(typeHandler(Recursive.class, referenceFields(Recursive.class), false));
+
+        // the strings, lists and standard maps of this JDK have a handler, whether their fields are read through
+        // reflection or with sun.misc.Unsafe
+        Class<?>[] known = { String.class, ArrayList.class, HashMap.class, TreeMap.class, ConcurrentHashMap.class,
+                             ConcurrentSkipListMap.class, Class.forName("java.util.TreeMap$Entry"),
+                             Class.forName("java.util.concurrent.ConcurrentSkipListMap$Index") };
+        for (Class<?> type : known) {
+            Field[] fields = referenceFields(type);
+            assertNotNull(type.getName(), typeHandler(type, fields, false));
+            if (UnsafeAccess.hasUnsafe())
+                assertNotNull(type.getName(), typeHandler(type, fields, true));
+
+            // any other layout, e.g. with the fields filtered by the meter, goes through the generic path
+            assertNull(type.getName(), typeHandler(type, Arrays.copyOf(fields, fields.length - 1), false));
+        }
+        assertNull(typeHandler(LinkedHashMap.class, referenceFields(LinkedHashMap.class), false));
+
+        // check the crawled internals of the standard collections against the expected objects
+        HashMap<Integer, Object> map = new HashMap<Integer, Object>();
+        TreeMap<Integer, Object> treeMap = new TreeMap<Integer, Object>();
+        ConcurrentHashMap<Integer, Object> concurrentMap = new ConcurrentHashMap<Integer, Object>();
+        ConcurrentSkipListMap<Integer, Object> skipListMap = new ConcurrentSkipListMap<Integer, Object>();
+        ArrayList<Object> list = new ArrayList<Object>();
+        long mapEntries = 0;
+        long treeMapEntries = 0;
+        long keys = 0;
+        long contents = 0;
+        for (int i = 0; i < 100; i++) {
+            Integer key = new Integer(1000 + i);
+            Object value = new Object();
+            map.put(key, value);
+            treeMap.put(key, value);
+            concurrentMap.put(key, value);
+            skipListMap.put(key, value);
+            list.add(key);
+            keys += meter.measure(key);
+            contents += meter.measure(key) + meter.measure(value);
+        }
+        // the entry set views are cached by the maps, and crawled as well
+        mapEntries += meter.measure(map.entrySet());
+        for (Map.Entry<Integer, Object> entry : map.entrySet())
+            mapEntries += meter.measure(entry);
+        treeMapEntries += meter.measure(treeMap.entrySet());
+        for (Map.Entry<Integer, Object> entry : treeMap.entrySet())
+            treeMapEntries += meter.measure(entry);
+
+        Field table = HashMap.class.getDeclaredField("table");
+        table.setAccessible(true);
+        Field elementData = ArrayList.class.getDeclaredField("elementData");
+        elementData.setAccessible(true);
+
+        assertEquals(meter.measure(map) + meter.measure(table.get(map)) + mapEntries + contents,
+                     meter.measureDeep(map));
+        assertEquals(meter.measure(treeMap) + treeMapEntries + contents, meter.measureDeep(treeMap));
+        assertEquals(meter.measure(list) + meter.measure(elementData.get(list)) + keys,
+                     meter.measureDeep(list));
+        assertEquals(1 + 1 + 1 + 100 + 200, meter.countChildren(map));
+
+        // the elements of the tables of the hash maps are never ignored, so they are not checked one by one
+        Field concurrentTable = ConcurrentHashMap.class.getDeclaredField("table");
+        concurrentTable.setAccessible(true);
+        Object[] nodes = (Object[]) concurrentTable.get(concurrentMap);
+        assertTrue(TypeHandler.hasKnownElements(table.get(map).getClass()));
+        assertTrue(TypeHandler.hasKnownElements(nodes.getClass()));
+        assertFalse(TypeHandler.hasKnownElements(Object[].class));
+
+        long concurrentMapNodes = 0;
+        for (Object node : nodes) {
+            for (; node != null; node = fieldValue(node, "next"))
+                concurrentMapNodes += meter.measure(node);
+        }
+        assertEquals(meter.measure(concurrentMap) + meter.measure(nodes) + concurrentMapNodes + contents,
+                     meter.measureDeep(concurrentMap));
+        assertEquals(1 + 1 + 100 + 200, meter.countChildren(concurrentMap));
+
+        // the index levels of a skip list are random, so they are walked as the nodes are
+        long skipListNodes = 0;
+        Object head = fieldValue(skipListMap, "head");
+        for (Object level = head; level != null; level = fieldValue(level, "down")) {
+            for (Object index = level; index != null; index = fieldValue(index, "right"))
+                skipListNodes += meter.measure(index);
+        }
+        for (Object node = fieldValue(head, "node"); node != null; node = fieldValue(node, "next"))
+            skipListNodes += meter.measure(node);
+        // the element counter of JDK 14 and later
+        Object adder = fieldValue(skipListMap, "adder");
+        if (adder != null)
+            skipListNodes += meter.measure(adder);
+        assertEquals(meter.measure(skipListMap) + skipListNodes + contents, meter.measureDeep(skipListMap));
+
+        String string = "jamm";
+        Field value = String.class.getDeclaredField("value");
+        value.setAccessible(true);
+        assertEquals(meter.measure(string) + meter.measure(value.get(string)), meter.measureDeep(string));
+        assertEquals(meter.measure(new long[10]), meter.measureDeep(new long[10]));
+
+        // the handlers read the same children with every field access
+        Object[] graph = { map, treeMap, concurrentMap, skipListMap, list, string };
+        StringWriter reflection = new StringWriter();
+        assertEquals(meter.measureDeep(graph), meter.enableFoldedStacks(reflection, 10).measureDeep(graph));
+        for (MemoryMeter.FieldAccess fieldAccess : new MemoryMeter.FieldAccess[] { MemoryMeter.FieldAccess.BEST,
+                                                                                     MemoryMeter.FieldAccess.GENERATED }) {
+            StringWriter stacks = new StringWriter();
+            MemoryMeter other = new MemoryMeter().withFieldAccess(fieldAccess);
+            assertEquals(meter.measureDeep(graph), other.enableFoldedStacks(stacks, 10).measureDeep(graph));
+            assertEquals(reflection.toString(), stacks.toString());
+            assertEquals(meter.countChildren(graph), other.countChildren(graph));
+            assertNotNull(other.layoutOf(HashMap.class).handler());
+        }
+        assertNotNull(meter.layoutOf(HashMap.class).handler());
+    }
+
+    /**
+     * @return the handler of the specified class for the specified fields, read at their offsets or through reflection
+     */
+    private static TypeHandler typeHandler(Class<?> type, Field[] fields, boolean unsafe) {
+        String[] names = new String[fields.length];
+        for (int i = 0; i < fields.length; i++)
+            names[i] = fields[i].getName();
+        return TypeHandler.of(type, names, fields, unsafe ? UnsafeAccess.offsetsOf(fields) : null);
+    }
+
+    /**
+     * @return the non-static reference fields of the specified class and of its superclasses, the class first
+     */
+    private static Field[] referenceFields(Class<?> type) {
+        List<Field> fields = new ArrayList<Field>();
+        for (Class<?> cls = type; cls != Object.class; cls = cls.getSuperclass()) {
+            for (Field field : cls.getDeclaredFields()) {
+                if (!field.getType().isPrimitive() && !Modifier.isStatic(field.getModifiers()))
+                    fields.add(field);
+            }
+        }
+        return fields.toArray(new Field[fields.size()]);
+    }
+
+    /**
+     * @return the value of the specified field of an object, or <code>null</code> if its class has no such field
+     */
+    private static Object fieldValue(Object object, String name) throws IllegalAccessException {
+        for (Class<?> cls = object.getClass(); cls != null; cls = cls.getSuperclass()) {
+            try {
+                Field field = cls.getDeclaredField(name);
+                field.setAccessible(true);
+                return field.get(object);
+            } catch (NoSuchFieldException e) {
+                // look in the superclass
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testMeasurable() {
+        MemoryMeter meter = new MemoryMeter();
+
+        Trie root = new Trie(100);
+        Trie left = new Trie(10);
+        Trie right = new Trie(20);
+        root.children[0] = left;
+        root.children[1] = right;
+        right.children[0] = left;
+        right.children[1] = new Object();
+        root.hidden = new Object();
+
+        assertEquals(100, meter.measure(root));
+        assertEquals(100 + 10 + 20 + meter.measure(new Object()), meter.measureDeep(root));
+        assertEquals(4, meter.countChildren(root));
+        assertEquals(meter.measureDeep(root), meter.withFieldAccess(MemoryMeter.FieldAccess.BEST).measureDeep(root));
+    }
+
+    /**
+     * A Measurable that reports a fixed size and hides its own arrays and one of its fields.
+     */
+    private static final class Trie implements Measurable {
+
+        private final long size;
+
+        private final Object[] children = new Object[2];
+
+        private Object hidden;
+
+        private Trie(long size) {
+            this.size = size;
+        }
+
+        @Override
+        public long shallowSize() {
+            return size;
+        }
+
+        @Override
+        public void addChildrenTo(MeasurementStack stack) {
+            for (int i = 0; i < children.length; i++)
+                stack.push(Integer.toString(i), children[i]);
+        }
+    }
+
+    @Test
+    public void testCachedShallowSizes() {
+        MemoryMeter meter = new MemoryMeter();
+
+        assertEquals(objectSize(0, 2, 0, 0, 0), meter.measure(new Child()));
+        assertEquals(objectSize(0, 2, 0, 0, 0), meter.measure(new Child()));
+        assertEquals(arraySize(3), meter.measure(new Object[3]));
+        assertEquals(arraySize(5), meter.measure(new Object[5]));
+
+        // the size of a Class depends on its static fields so it must not be cached
+        meter.measure(MemoryMeterTest.class);
+        assertEquals(new MemoryMeter().measure(Object.class), meter.measure(Object.class));
+    }
+
+    @Test
+    public void testBloomFilterTracker() {
+        MemoryMeter exact = new MemoryMeter();
+        MemoryMeter bloom = exact.withTrackerProvider(BloomFilterSet.<Object>provider(100000, 0.0001));
+        assertEquals(0, exact.measureDeepErrorBound(), 0);
+        assertTrue(bloom.measureDeepErrorBound() > 0.0001 && bloom.measureDeepErrorBound() < 0.001);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals(0, bloom.parallel(executor, 2).measureDeepErrorBound(), 0);
+        } finally {
+            executor.shutdown();
+        }
+
+        Recursive root = new Recursive();
+        Recursive recursive = root;
+        for (int i = 0; i < 10000; i++) {
+            recursive.child = new Recursive();
+            recursive = recursive.child;
+        }
+        // cycles are not followed and the result can only be an undercount
+        recursive.child = root;
+        long expected = exact.measureDeep(root);
+        long measured = bloom.measureDeep(root);
+        assertTrue(measured <= expected);
+        assertTrue(measured > 0);
+    }
+
+    @Test
+    public void testParallel() throws InterruptedException {
+        Object[] roots = new Object[10000];
+        for (int i = 0; i < roots.length; i++) {
+            Recursive recursive = new Recursive();
+            recursive.child = new Recursive();
+            // some objects are shared and there are cycles
+            recursive.child.child = i % 3 == 0 ? recursive : (Recursive) roots[i / 2];
+            roots[i] = recursive;
+        }
+        HashMap<Object, Object> map = new HashMap<Object, Object>();
+        for (int i = 0; i < 10000; i++)
+            map.put(Integer.toString(i), new Object[] { roots, new Date() });
+
+        MemoryMeter meter = new MemoryMeter();
+        long size = meter.measureDeep(map);
+        long count = meter.countChildren(map);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            MemoryMeter parallel = meter.parallel(executor, 4);
+            for (int i = 0; i < 5; i++) {
+                assertEquals(size, parallel.measureDeep(map));
+                assertEquals(count, parallel.countChildren(map));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // the calling thread completes the measurement alone if the executor does not run the other workers
+        ExecutorService busy = Executors.newSingleThreadExecutor();
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            busy.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    return latch.await(1, TimeUnit.MINUTES);
+                }
+            });
+            assertEquals(size, meter.parallel(busy, 2).measureDeep(map));
+            latch.countDown();
+        } finally {
+            busy.shutdown();
+        }
+    }
+
+    @Test
+    public void testMeasureDeepAll() {
+        MemoryMeter meter = new MemoryMeter();
+        long recursiveSize = objectSize(0, 1, 0, 0, 1);
+
+        // a chain of 3 objects, the last 2 of which are reachable from two roots
+        Recursive shared = new Recursive();
+        shared.child = new Recursive();
+        shared.child.child = new Recursive();
+        Recursive first = new Recursive();
+        first.child = shared;
+        Recursive second = new Recursive();
+        second.child = new Recursive();
+        second.child.child = shared.child;
+        // a root reachable from another one
+        Recursive third = new Recursive();
+        Recursive fourth = new Recursive();
+        fourth.child = third;
+
+        RootsMeasurement measurement = meter.measureDeepAll(Arrays.asList(first, second, third, fourth));
+        assertEquals(4, measurement.rootCount());
+        assertEquals(recursiveSize * 2, measurement.exclusiveBytes(0));
+        assertEquals(recursiveSize * 2, measurement.exclusiveBytes(1));
+        assertEquals(0, measurement.exclusiveBytes(2));
+        assertEquals(recursiveSize, measurement.exclusiveBytes(3));
+        assertEquals(recursiveSize * 3, measurement.sharedBytes());
+        assertEquals(meter.measureDeep(new Object[] { first, second, third, fourth }) - arraySize(4), measurement.totalBytes());
+
+        // an @Unmetered object reached through a field whose type is not ignored is measured, and can be shared
+        WithTypeAnnotation unmetered = new WithTypeAnnotation("shared");
+        Holder firstHolder = new Holder(unmetered);
+        Holder secondHolder = new Holder(unmetered);
+        long holderSize = meter.measure(firstHolder);
+        long unmeteredSize = meter.measureDeep(new Holder(unmetered)) - holderSize;
+        RootsMeasurement holders = meter.measureDeepAll(Arrays.asList(firstHolder, secondHolder));
+        assertEquals(holderSize, holders.exclusiveBytes(0));
+        assertEquals(holderSize, holders.exclusiveBytes(1));
+        assertEquals(unmeteredSize, holders.sharedBytes());
+        assertEquals(holderSize * 2 + unmeteredSize, holders.totalBytes());
+    }
+
+    @Test
+    public void testStrategy() {
+        assertEquals(MemoryMeter.Strategy.INSTRUMENTATION, new MemoryMeter().strategy());
+        assertEquals(MemoryMeter.Strategy.INSTRUMENTATION, new MemoryMeter().withGuessing(MemoryMeter.Guess.FALLBACK_BEST).strategy());
+        assertEquals(MemoryMeter.Strategy.SPEC, new MemoryMeter().withGuessing(MemoryMeter.Guess.ALWAYS_SPEC).strategy());
+        assertEquals(MemoryMeter.Strategy.UNSAFE, new MemoryMeter().withGuessing(MemoryMeter.Guess.ALWAYS_UNSAFE).strategy());
+    }
+
+    @Test
+    public void testLayoutCache() throws Exception {
+        assumeThat(UnsafeAccess.hasUnsafe(), is(true));
+        File file = File.createTempFile("jamm", ".cache");
+        assertTrue(file.delete());
+        try {
+            Recursive root = new Recursive();
+            root.child = new Recursive();
+            HashMap<String, Object> map = new HashMap<String, Object>();
+            for (int i = 0; i < 100; i++)
+                map.put(Integer.toString(i), new HasEnumField());
+            Object[] graph = { root, map, new Date() };
+
+            MemoryMeter uncached = new MemoryMeter().withGuessing(MemoryMeter.Guess.ALWAYS_UNSAFE)
+                                                    .withFieldAccess(MemoryMeter.FieldAccess.BEST);
+            LayoutCache cache = LayoutCache.open(file);
+            MemoryMeter meter = uncached.withLayoutCache(cache);
+            assertEquals(uncached.measureDeep(graph), meter.measureDeep(graph));
+            assertNotNull(meter.layoutOf(Recursive.class).referenceFields());
+            cache.save();
+
+            // the meters of the next processes crawl the cached classes without walking their fields
+            meter = uncached.withLayoutCache(LayoutCache.open(file));
+            assertEquals(uncached.measureDeep(graph), meter.measureDeep(graph));
+            assertEquals(uncached.countChildren(graph), meter.countChildren(graph));
+            ClassLayout layout = meter.layoutOf(Recursive.class);
+            assertNull(layout.referenceFields());
+            assertEquals(Arrays.asList("child"), Arrays.asList(layout.referenceNames()));
+            assertNull(meter.layoutOf(HashMap.class).referenceFields());
+            assertNull(meter.layoutOf(HasEnumField.class).referenceFields());
+
+            // the types of the cached fields are still filtered by the meter settings
+            MemoryMeter singletons = uncached.ignoreKnownSingletons();
+            assertEquals(singletons.measureDeep(graph), singletons.withLayoutCache(LayoutCache.open(file)).measureDeep(graph));
+
+            // the cached sizes are used as well
+            cache = LayoutCache.open(file);
+            cache.recordInstanceSize(Date.class, MemoryMeter.Strategy.UNSAFE, 1);
+            cache.save();
+            assertEquals(1, uncached.withLayoutCache(LayoutCache.open(file)).measure(new Date()));
+            MemoryMeter spec = uncached.withGuessing(MemoryMeter.Guess.ALWAYS_SPEC);
+            assertEquals(spec.measure(new Date()), spec.withLayoutCache(LayoutCache.open(file)).measure(new Date()));
+
+            // an entry is not used anymore once the class file of its class has changed
+            URL classes = Recursive.class.getProtectionDomain().getCodeSource().getLocation();
+            File classFile = new File(new File(classes.toURI()), Recursive.class.getName().replace('.', '/') + ".class");
+            assumeThat(classFile.isFile(), is(true));
+            long lastModified = classFile.lastModified();
+            assertTrue(classFile.setLastModified(lastModified - 10000));
+            try {
+                meter = uncached.withLayoutCache(LayoutCache.open(file));
+                assertEquals(uncached.measureDeep(root), meter.measureDeep(root));
+                assertNotNull(meter.layoutOf(Recursive.class).referenceFields());
+                assertNull(meter.layoutOf(HashMap.class).referenceFields());
+            } finally {
+                classFile.setLastModified(lastModified);
+            }
+
+            // invalid cache files are ignored
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(10);
+            } finally {
+                raf.close();
+            }
+            meter = uncached.withLayoutCache(LayoutCache.open(file));
+            assertEquals(uncached.measureDeep(graph), meter.measureDeep(graph));
+            assertNotNull(meter.layoutOf(Recursive.class).referenceFields());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMeasureDeepUpTo() {
+        MemoryMeter meter = new MemoryMeter();
+        long recursiveSize = objectSize(0, 1, 0, 0, 1);
+
+        Recursive root = new Recursive();
+        Recursive current = root;
+        for (int i = 1; i < 10; i++) {
+            current.child = new Recursive();
+            current = current.child;
+        }
+
+        DeepMeasurement complete = meter.measureDeepUpTo(root, Long.MAX_VALUE, Long.MAX_VALUE, 1, TimeUnit.DAYS);
+        assertEquals(recursiveSize * 10, complete.bytes());
+        assertEquals(10, complete.objects());
+        assertFalse(complete.isLowerBound());
+
+        DeepMeasurement bytesLimited = meter.measureDeepUpTo(root, recursiveSize * 3, Long.MAX_VALUE, 1, TimeUnit.DAYS);
+        assertEquals(recursiveSize * 4, bytesLimited.bytes());
+        assertTrue(bytesLimited.isLowerBound());
+
+        DeepMeasurement objectsLimited = meter.measureDeepUpTo(root, Long.MAX_VALUE, 5, 1, TimeUnit.DAYS);
+        assertEquals(6, objectsLimited.objects());
+        assertTrue(objectsLimited.isLowerBound());
+
+        // the limits are crossed when exceeded, not when reached
+        DeepMeasurement exact = meter.measureDeepUpTo(root, recursiveSize * 10, 10, 1, TimeUnit.DAYS);
+        assertEquals(recursiveSize * 10, exact.bytes());
+        assertFalse(exact.isLowerBound());
+
+        // the listener is notified of the truncated measurement
+        StringWriter writer = new StringWriter();
+        DeepMeasurement written = meter.enableFoldedStacks(writer, 20).measureDeepUpTo(root, Long.MAX_VALUE, 5, 1, TimeUnit.DAYS);
+        assertTrue(written.isLowerBound());
+        long writtenBytes = 0;
+        for (String line : writer.toString().split("\n"))
+            writtenBytes += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+        assertEquals(written.bytes(), writtenBytes);
+    }
+
+    @Test
+    public void testCursor() {
+        MemoryMeter meter = new MemoryMeter();
+
+        Recursive root = new Recursive();
+        Recursive current = root;
+        for (int i = 1; i < 10; i++) {
+            current.child = new Recursive();
+            current = current.child;
+        }
+
+        MeasurementCursor cursor = meter.cursor(root);
+        assertEquals(0, cursor.objects());
+        assertFalse(cursor.isComplete());
+
+        assertFalse(cursor.advance(4));
+        assertEquals(4, cursor.objects());
+        assertEquals(objectSize(0, 1, 0, 0, 1) * 4, cursor.bytes());
+
+        assertTrue(cursor.advance(100));
+        assertEquals(10, cursor.objects());
+        assertEquals(meter.measureDeep(root), cursor.bytes());
+
+        MeasurementCursor timed = meter.cursor(root);
+        assertTrue(timed.advanceFor(1, TimeUnit.DAYS));
+        assertEquals(meter.measureDeep(root), timed.bytes());
+    }
+
+    @Test
+    public void testMeasureDeepEstimate() {
+        MemoryMeter meter = new MemoryMeter();
+
+        // elements of the same size are estimated exactly
+        Object[] uniform = new Object[10000];
+        for (int i = 0; i < uniform.length; i++)
+            uniform[i] = new Recursive();
+        SizeEstimate estimate = meter.measureDeepEstimate(uniform, 1000, 100);
+        assertFalse(estimate.isExact());
+        assertEquals(meter.measureDeep(uniform), estimate.estimate());
+        assertEquals(0, estimate.standardError(), 0);
+
+        // the arrays shorter than the minimum length are crawled entirely
+        SizeEstimate exact = meter.measureDeepEstimate(uniform, 20000, 100);
+        assertTrue(exact.isExact());
+        assertEquals(meter.measureDeep(uniform), exact.estimate());
+
+        Object[] mixed = new Object[10000];
+        for (int i = 0; i < mixed.length; i++)
+            mixed[i] = new long[i % 10];
+        SizeEstimate mixedEstimate = meter.measureDeepEstimate(mixed, 1000, 100);
+        assertTrue(mixedEstimate.standardError() > 0);
+        assertTrue(mixedEstimate.lowerBound() >= meter.measure(mixed));
+        assertTrue(mixedEstimate.lowerBound() < mixedEstimate.estimate());
+        assertTrue(mixedEstimate.upperBound() > mixedEstimate.estimate());
+    }
+
+    @Test
+    public void testMeasureHistogram() {
+        MemoryMeter meter = new MemoryMeter();
+
+        Object[] array = new Object[10];
+        for (int i = 0; i < array.length; i++)
+            array[i] = i % 2 == 0 ? new Recursive() : new long[i];
+
+        ClassHistogram histogram = meter.measureHistogram(array);
+        assertEquals(3, histogram.classCount());
+        assertEquals(11, histogram.totalInstances());
+        assertEquals(meter.measureDeep(array), histogram.totalBytes());
+
+        // the bytes remaining in the buffers are accounted for in the histogram
+        MemoryMeter omitting = meter.omitSharedBufferOverhead();
+        ByteBuffer buffer = ByteBuffer.allocate(1000);
+        buffer.position(100);
+        Object[] slices = { buffer.slice(), buffer.slice() };
+        ClassHistogram buffers = omitting.measureHistogram(slices);
+        assertEquals(omitting.measureDeep(slices), buffers.totalBytes());
+        assertEquals(2 * omitting.measureDeep(slices[0]), buffers.get(slices[0].getClass()).bytes());
+
+        ClassHistogram.Entry recursive = histogram.get(Recursive.class);
+        assertEquals(5, recursive.instances());
+        assertEquals(objectSize(0, 1, 0, 0, 1) * 5, recursive.bytes());
+
+        List<ClassHistogram.Entry> top = histogram.top(2);
+        assertEquals(2, top.size());
+        assertTrue(top.get(0).bytes() >= top.get(1).bytes());
+        assertEquals(histogram.entries().subList(0, 2).toString(), top.toString());
+    }
+
+    @Test
+    public void testMeasureRetained() {
+        MemoryMeter meter = new MemoryMeter();
+        long recursiveSize = objectSize(0, 1, 0, 0, 1);
+
+        // root -> [a, b, c]; a -> a1 -> a2; b -> shared; c -> shared; a2 -> a (cycle)
+        Recursive a = new Recursive();
+        a.child = new Recursive();
+        a.child.child = new Recursive();
+        a.child.child.child = a;
+        Recursive shared = new Recursive();
+        Recursive b = new Recursive();
+        b.child = shared;
+        Recursive c = new Recursive();
+        c.child = shared;
+        Object[] root = new Object[] { a, b, c };
+
+        RetainedSizes retained = meter.measureRetained(root, 2);
+        assertEquals(meter.measureDeep(root), retained.rootRetainedBytes());
+        assertEquals(7, retained.objectCount());
+
+        // shared is dominated by the root rather than by b or c
+        List<RetainedSizes.Entry> top = retained.top();
+        assertEquals(2, top.size());
+        assertTrue(top.get(0).object() == a);
+        assertEquals(recursiveSize * 3, top.get(0).retainedBytes());
+        assertEquals(recursiveSize, top.get(1).retainedBytes());
+
+        assertEquals(4, meter.measureRetained(root, 10).top().size());
+
+        Object[] large = new Object[1000];
+        for (int i = 0; i < large.length; i++)
+            large[i] = i % 3 == 0 ? new Recursive() : root;
+        assertEquals(meter.measureDeep(large), meter.measureRetained(large, 0).rootRetainedBytes());
+    }
+
+    @Test
+    public void testFoldedStacks() throws InterruptedException {
+        Recursive root = new Recursive();
+        root.child = new Recursive();
+        root.child.child = new Recursive();
+        Object[] array = new Object[] { root, new Recursive(), new Recursive() };
+
+        StringWriter writer = new StringWriter();
+        MemoryMeter meter = new MemoryMeter().enableFoldedStacks(writer, 2);
+        long total = meter.measureDeep(array);
+
+        long recursiveSize = objectSize(0, 1, 0, 0, 1);
+        Set<String> lines = new HashSet<String>(Arrays.asList(writer.toString().split("\n")));
+        Set<String> expected = new HashSet<String>(Arrays.asList("root;java.lang.Object[] " + meter.measure(array),
+                                                                 "root;[];" + Recursive.class.getName() + " " + recursiveSize * 3,
+                                                                 // the objects deeper than 2 fields are aggregated
+                                                                 "root;[];child;" + Recursive.class.getName() + " " + recursiveSize * 2));
+        assertEquals(expected, lines);
+        assertEquals(meter.measure(array) + recursiveSize * 5, total);
+
+        writer = new StringWriter();
+        new MemoryMeter().enableFoldedStacks(writer, 10).countChildren(array);
+        assertTrue(writer.toString().contains("root;[];child;child;" + Recursive.class.getName() + " 1\n"));
+
+        // the paths are as deep as the maximum depth, which must not be limited by the stack of the measuring thread
+        final Recursive list = new Recursive();
+        Recursive last = list;
+        for (int i = 1; i < 2000; i++) {
+            last.child = new Recursive();
+            last = last.child;
+        }
+        final StringWriter deepWriter = new StringWriter();
+        final long[] count = new long[1];
+        Thread thread = new Thread(null, new Runnable() {
+            public void run() {
+                count[0] = new MemoryMeter().enableFoldedStacks(deepWriter, 2000).countChildren(list);
+            }
+        }, "small-stack", 128 * 1024);
+        thread.start();
+        thread.join();
+        assertEquals(2000, count[0]);
+        assertEquals(2000, deepWriter.toString().split("\n").length);
+    }
+
+    @Test
+    public void testMeasureDeepToFile() throws IOException {
+        MemoryMeter meter = new MemoryMeter();
+
+        Object[] array = new Object[1000];
+        for (int i = 0; i < array.length; i++) {
+            Recursive recursive = new Recursive();
+            recursive.child = i % 2 == 0 ? new Recursive() : null;
+            array[i] = recursive;
+        }
+
+        File file = File.createTempFile("jamm", ".graph");
+        try {
+            assertEquals(meter.measureDeep(array), meter.measureDeepToFile(array, file));
+
+            GraphDump dump = GraphDump.read(file);
+            assertTrue(dump.isComplete());
+            assertEquals(meter.countChildren(array), dump.objectCount());
+            assertEquals(meter.measureDeep(array), dump.totalBytes());
+            assertEquals("[Ljava.lang.Object;", dump.className(0));
+            assertEquals(-1, dump.parent(0));
+            assertEquals(array.length, dump.children(0).length);
+
+            int element = dump.children(0)[0];
+            assertEquals(0, dump.parent(element));
+            assertEquals(Recursive.class.getName(), dump.className(element));
+            Recursive recursive = (Recursive) array[Integer.parseInt(dump.field(element))];
+            assertEquals(meter.measureDeep(recursive), dump.deepBytes(element));
+            if (recursive.child != null)
+                assertEquals("child", dump.field(dump.children(element)[0]));
+
+            List<GraphDump.ClassTotal> histogram = dump.histogram();
+            assertEquals(2, histogram.size());
+            assertEquals(Recursive.class.getName(), histogram.get(0).className());
+            assertEquals(1500, histogram.get(0).instances());
+            assertEquals(objectSize(0, 1, 0, 0, 1) * 1500, histogram.get(0).bytes());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMeasureDeepToFileTotal() throws IOException {
+        // the overhead of the shared buffer is only known once the crawl is done
+        MemoryMeter meter = new MemoryMeter().omitSharedBufferOverhead();
+        ByteBuffer buffer = ByteBuffer.allocate(1000);
+        buffer.position(100);
+        ByteBuffer slice = buffer.slice();
+
+        File file = File.createTempFile("jamm", ".graph");
+        try {
+            long size = meter.measureDeepToFile(slice, file);
+            assertEquals(meter.measureDeep(slice), size);
+            assertEquals(size, GraphDump.read(file).totalBytes());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testReadCorruptedGraph() throws IOException {
+        File file = File.createTempFile("jamm", ".graph");
+        try {
+            // a string whose length decodes to a negative int
+            ByteBuffer bytes = ByteBuffer.allocate(16);
+            bytes.putInt(GraphExporter.MAGIC).put(GraphExporter.VERSION).put(GraphExporter.STRING);
+            for (int i = 0; i < 9; i++)
+                bytes.put((byte) 0xFF);
+            bytes.put((byte) 0x01);
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(bytes.array());
+            } finally {
+                out.close();
+            }
+
+            try {
+                GraphDump.read(file);
+                fail("Expected IOException");
+            } catch (IOException e) {
+                assertEquals("Corrupted file: invalid int (was -1).", e.getMessage());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMeasureDeepUpToNegativeLimit() {
+        new MemoryMeter().measureDeepUpTo(new Object(), -1, 0, 0, TimeUnit.SECONDS);
+    }
+
     @SuppressWarnings("unused")
     private static class Parent {
         private int i;
@@ -561,6 +1416,14 @@ public class MemoryMeterTest
         int i;
         Recursive child = null;
     }
+
+    private static class Holder {
+        Object value;
+
+        Holder(Object value) {
+            this.value = value;
+        }
+    }
     
     @Test
     public void testIgnoreKnownSingletons() {
@@ -623,6 +1486,35 @@ public class MemoryMeterTest
 
         String s = "test";
         assertEquals(0, meter.measureDeep(new WithTypeAnnotation(s)));
+
+        // the ignored elements of an array are not tracked either
+        final Set<Object> tracked = new HashSet<Object>();
+        meter = meter.withTrackerProvider(new Callable<Set<Object>>() {
+            public Set<Object> call() {
+                final Set<Object> set = new IdentityHashSet<Object>();
+                return new AbstractSet<Object>() {
+                    @Override
+                    public boolean add(Object o) {
+                        tracked.add(o);
+                        return set.add(o);
+                    }
+
+                    @Override
+                    public Iterator<Object> iterator() {
+                        return set.iterator();
+                    }
+
+                    @Override
+                    public int size() {
+                        return set.size();
+                    }
+                };
+            }
+        });
+        Object[] array = { new WithTypeAnnotation(s), s };
+        assertEquals(meter.measure(array) + meter.measureDeep(s), meter.measureDeep(array));
+        assertTrue(tracked.contains(s));
+        assertFalse(tracked.contains(array[0]));
     }
 
     @Test